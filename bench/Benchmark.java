@@ -0,0 +1,87 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//one benchmark with one set of params (see Benchmarks for the list and BenchmarkRunner for how they get run)
+//
+//run() is called over and over for every iteration, it returns how many units of work it did so that ops that
+//process a whole file can be reported per frame
+public abstract class Benchmark {
+
+    public enum Mode {
+        //time per unit of work
+        AVERAGE_TIME("avgt"),
+        //units of work per second
+        THROUGHPUT("thrpt");
+
+        private final String shortName;
+
+        Mode(String shortName) {
+            this.shortName = shortName;
+        }
+
+        public String getShortName() {
+            return shortName;
+        }
+    }
+
+    private final String name;
+    private final Mode mode;
+    private final String unit;
+    private final Map<String, String> params = new LinkedHashMap<>();
+
+    // unit is what the score gets reported in: us/op, ms/op or ops/s, frames/s...
+    protected Benchmark(String name, Mode mode, String unit) {
+        this.name = name;
+        this.mode = mode;
+        this.unit = unit;
+    }
+
+    public Benchmark param(String key, Object value){
+        params.put(key, String.valueOf(value));
+        return this;
+    }
+
+    // called once before the first iteration (not timed)
+    public void setup() throws Exception {
+    }
+
+    public abstract long run() throws Exception;
+
+    // called once after the last iteration (not timed)
+    public void tearDown() throws Exception {
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    // name and params, the way the runner prints them and the way -b matches them
+    public String getId(){
+        StringBuilder id = new StringBuilder(name);
+        for (Map.Entry<String, String> param : params.entrySet()){
+            id.append(id.length() == name.length() ? ':' : ',').append(param.getKey()).append('=').append(param.getValue());
+        }
+        return id.toString();
+    }
+
+    // nanoseconds per unit of work converted to the benchmark's unit
+    public double score(long nanos, long units){
+        if (mode == Mode.THROUGHPUT) return units / (nanos / 1e9);
+        double perUnit = (double) nanos / Math.max(1, units);
+        if (unit.startsWith("ms")) return perUnit / 1e6;
+        if (unit.startsWith("us")) return perUnit / 1e3;
+        return perUnit;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+//runs the benchmarks (see Benchmarks) the way JMH does: every benchmark in its own jvm, a few warmup iterations that
+//get thrown away and then the measured iterations, each one running the benchmark for a fixed time. the results are
+//printed as a table and written as json in the same layout as JMH's -rf json so they can be tracked over time with
+//the usual JMH tools
+//
+//run it with the app's classes and lib/ on the classpath, e.g.
+//    javac -cp "lib/*" -d out src/*.java bench/*.java
+//    java -cp "out:lib/*" BenchmarkRunner -o results.json
+//options: -b <regex> only run benchmarks whose id (e.g. seek:fixture=vbr,position=50%) matches, -l lists them,
+//         -wi/-i <count> warmup/measured iterations, -r <seconds> per iteration, -f <forks> (0 runs in this jvm),
+//         -d <dir> where the generated mp3s and the metadata cache go, -o <file> for the json
+public class BenchmarkRunner {
+
+    private static final String FORK_OPTION = "--fork";
+    private static final String RESULT_PREFIX = "# result ";
+
+    //99.9% two sided student's t quantiles for 1 to 30 degrees of freedom (what JMH uses for the score error)
+    private static final double[] T_QUANTILES = {
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+    private static final double T_QUANTILE_LIMIT = 3.291;
+
+    private Pattern filter = Pattern.compile("");
+    private boolean list;
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private double iterationSeconds = 1;
+    private int forks = 1;
+    private File workDirectory = new File(System.getProperty("java.io.tmpdir"), "jamp-bench");
+    private File resultFile = new File("bench-results.json");
+    private String forkedBenchmark;
+
+    private static class Result {
+        final Benchmark benchmark;
+        final List<Double> scores = new ArrayList<>();
+
+        Result(Benchmark benchmark) {
+            this.benchmark = benchmark;
+        }
+
+        double mean(){
+            double sum = 0;
+            for (double score : scores) sum += score;
+            return sum / scores.size();
+        }
+
+        // half width of the 99.9% confidence interval, NaN with a single score
+        double error(){
+            int count = scores.size();
+            if (count < 2) return Double.NaN;
+            double mean = mean();
+            double squares = 0;
+            for (double score : scores) squares += (score - mean) * (score - mean);
+            double deviation = Math.sqrt(squares / (count - 1));
+            double t = count - 1 <= T_QUANTILES.length ? T_QUANTILES[count - 2] : T_QUANTILE_LIMIT;
+            return t * deviation / Math.sqrt(count);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.parseArguments(args);
+        System.exit(runner.run());
+    }
+
+    private void parseArguments(String[] args){
+        for (int i = 0; i < args.length; i++){
+            String option = args[i];
+            if (option.equals("-l")){
+                list = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + option);
+            String value = args[++i];
+            switch (option){
+                case "-b":
+                    filter = Pattern.compile(value);
+                    break;
+                case "-wi":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "-i":
+                    iterations = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "-r":
+                    iterationSeconds = Double.parseDouble(value);
+                    break;
+                case "-f":
+                    forks = Integer.parseInt(value);
+                    break;
+                case "-d":
+                    workDirectory = new File(value);
+                    break;
+                case "-o":
+                    resultFile = new File(value);
+                    break;
+                case FORK_OPTION:
+                    forkedBenchmark = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+    }
+
+    private int run() throws Exception {
+        // the benchmarks get their own metadata cache so they neither use nor touch the real one
+        System.setProperty("jamp.cacheDir", new File(workDirectory, "cache").getAbsolutePath());
+        System.setProperty("java.awt.headless", "true");
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (Benchmark benchmark : Benchmarks.all(workDirectory)){
+            if (forkedBenchmark != null ? benchmark.getId().equals(forkedBenchmark)
+                    : filter.matcher(benchmark.getId()).find()){
+                benchmarks.add(benchmark);
+            }
+        }
+
+        if (forkedBenchmark != null){
+            // the forked jvm only reports the scores back to the parent
+            if (benchmarks.isEmpty()) throw new IllegalArgumentException("unknown benchmark " + forkedBenchmark);
+            Result result = runInThisJvm(benchmarks.get(0));
+            StringBuilder line = new StringBuilder(RESULT_PREFIX);
+            for (double score : result.scores) line.append(score).append(' ');
+            System.out.println(line.toString().trim());
+            return 0;
+        }
+
+        if (list){
+            for (Benchmark benchmark : benchmarks) System.out.println(benchmark.getId());
+            return 0;
+        }
+
+        // results shouldn't depend on what an earlier run left in the cache
+        deleteRecursively(new File(workDirectory, "cache").toPath());
+
+        List<Result> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks){
+            System.out.println("# Benchmark: " + benchmark.getId());
+            Result result = new Result(benchmark);
+            if (forks == 0){
+                result.scores.addAll(runInThisJvm(benchmark).scores);
+            } else{
+                for (int fork = 1; fork <= forks; fork++){
+                    System.out.println("# Fork: " + fork + " of " + forks);
+                    result.scores.addAll(runForked(benchmark));
+                }
+            }
+            results.add(result);
+            System.out.println();
+        }
+
+        printTable(results);
+        writeJson(results);
+        System.out.println("Results written to " + resultFile.getAbsolutePath());
+        return 0;
+    }
+
+    private Result runInThisJvm(Benchmark benchmark) throws Exception {
+        Result result = new Result(benchmark);
+        benchmark.setup();
+        try{
+            for (int i = 1; i <= warmupIterations; i++){
+                double score = iterate(benchmark);
+                System.out.println(String.format(Locale.ROOT, "# Warmup Iteration %3d: %.3f %s", i, score,
+                        benchmark.getUnit()));
+            }
+            for (int i = 1; i <= iterations; i++){
+                double score = iterate(benchmark);
+                result.scores.add(score);
+                System.out.println(String.format(Locale.ROOT, "Iteration %3d: %.3f %s", i, score, benchmark.getUnit()));
+            }
+        } finally{
+            benchmark.tearDown();
+        }
+        return result;
+    }
+
+    // runs the benchmark until the iteration time is up (at least once)
+    private double iterate(Benchmark benchmark) throws Exception {
+        long iterationNanos = (long) (iterationSeconds * 1e9);
+        long start = System.nanoTime();
+        long units = 0;
+        long elapsed;
+        do{
+            units += benchmark.run();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return benchmark.score(elapsed, units);
+    }
+
+    // same jvm options and classpath as this one, the child prints its iterations and then the scores
+    private List<Double> runForked(Benchmark benchmark) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BenchmarkRunner.class.getName());
+        command.add("-wi");
+        command.add(String.valueOf(warmupIterations));
+        command.add("-i");
+        command.add(String.valueOf(iterations));
+        command.add("-r");
+        command.add(String.valueOf(iterationSeconds));
+        command.add("-d");
+        command.add(workDirectory.getPath());
+        command.add(FORK_OPTION);
+        command.add(benchmark.getId());
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<Double> scores = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))){
+            String line;
+            while ((line = reader.readLine()) != null){
+                if (!line.startsWith(RESULT_PREFIX)){
+                    System.out.println(line);
+                    continue;
+                }
+                for (String score : line.substring(RESULT_PREFIX.length()).split(" ")){
+                    if (!score.isEmpty()) scores.add(Double.parseDouble(score));
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || scores.isEmpty()){
+            throw new IllegalStateException(benchmark.getId() + " failed (exit code " + exitCode + ")");
+        }
+        return scores;
+    }
+
+    private void printTable(List<Result> results){
+        int width = "Benchmark".length();
+        for (Result result : results) width = Math.max(width, result.benchmark.getId().length());
+
+        String format = "%-" + width + "s  %5s  %3s  %14s  %12s  %s%n";
+        System.out.printf(Locale.ROOT, format, "Benchmark", "Mode", "Cnt", "Score", "Error", "Units");
+        for (Result result : results){
+            System.out.printf(Locale.ROOT, format, result.benchmark.getId(), result.benchmark.getMode().getShortName(),
+                    result.scores.size(), String.format(Locale.ROOT, "%.3f", result.mean()),
+                    String.format(Locale.ROOT, "\u00B1 %.3f", result.error()), result.benchmark.getUnit());
+        }
+    }
+
+    private void writeJson(List<Result> results) throws IOException {
+        File parent = resultFile.getAbsoluteFile().getParentFile();
+        if (parent != null) Files.createDirectories(parent.toPath());
+
+        try (PrintWriter out = new PrintWriter(resultFile, StandardCharsets.UTF_8.name())){
+            out.println("[");
+            for (int i = 0; i < results.size(); i++){
+                Result result = results.get(i);
+                Benchmark benchmark = result.benchmark;
+                double mean = result.mean();
+                double error = result.error();
+
+                out.println("    {");
+                out.println("        \"benchmark\" : " + quote(benchmark.getName()) + ",");
+                out.println("        \"mode\" : " + quote(benchmark.getMode().getShortName()) + ",");
+                out.println("        \"threads\" : 1,");
+                out.println("        \"forks\" : " + forks + ",");
+                out.println("        \"jvm\" : " + quote(new File(System.getProperty("java.home"), "bin/java").getPath()) + ",");
+                out.print("        \"jvmArgs\" : [");
+                List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+                for (int arg = 0; arg < jvmArgs.size(); arg++) out.print((arg > 0 ? ", " : "") + quote(jvmArgs.get(arg)));
+                out.println("],");
+                out.println("        \"jdkVersion\" : " + quote(System.getProperty("java.version")) + ",");
+                out.println("        \"vmName\" : " + quote(System.getProperty("java.vm.name")) + ",");
+                out.println("        \"vmVersion\" : " + quote(System.getProperty("java.vm.version")) + ",");
+                out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+                out.println("        \"warmupTime\" : " + quote(iterationSeconds + " s") + ",");
+                out.println("        \"measurementIterations\" : " + iterations + ",");
+                out.println("        \"measurementTime\" : " + quote(iterationSeconds + " s") + ",");
+                out.println("        \"params\" : {");
+                int param = 0;
+                for (Map.Entry<String, String> entry : benchmark.getParams().entrySet()){
+                    out.println("            " + quote(entry.getKey()) + " : " + quote(entry.getValue())
+                            + (++param < benchmark.getParams().size() ? "," : ""));
+                }
+                out.println("        },");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + number(mean) + ",");
+                out.println("            \"scoreError\" : " + number(error) + ",");
+                out.println("            \"scoreConfidence\" : [" + number(mean - error) + ", " + number(mean + error) + "],");
+                out.println("            \"scoreUnit\" : " + quote(benchmark.getUnit()) + ",");
+                out.print("            \"rawData\" : [[");
+                for (int score = 0; score < result.scores.size(); score++){
+                    out.print((score > 0 ? ", " : "") + number(result.scores.get(score)));
+                }
+                out.println("]]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {}");
+                out.println("    }" + (i + 1 < results.size() ? "," : ""));
+            }
+            out.println("]");
+        }
+    }
+
+    private static String quote(String text){
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()){
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    // json has no NaN, JMH writes it as a string
+    private static String number(double value){
+        return Double.isNaN(value) || Double.isInfinite(value) ? quote(String.valueOf(value)) : String.valueOf(value);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> paths = Files.walk(path)){
+            paths.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+//the benchmarks of the paths that matter for how the player feels: parsing a song, loading a playlist, seeking and
+//decoding. the mp3s are made by Mp3Fixtures the first time a benchmark needs them
+public class Benchmarks {
+
+    //long enough that the frame scan of a full parse dominates, like a normal song
+    private static final int SONG_SECONDS = 180;
+
+    //playlist entries are short songs (hard links to one file, so a big playlist doesn't take much disk space)
+    private static final int PLAYLIST_SONG_SECONDS = 10;
+
+    private static final int LARGE_TAG_PICTURE_BYTES = 2 * 1024 * 1024;
+
+    public static List<Benchmark> all(File workDirectory){
+        final Mp3Fixtures fixtures = new Mp3Fixtures(new File(workDirectory, "fixtures"));
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        for (String fixture : new String[]{"cbr", "vbr", "id3"}){
+            // full: what playing a new song does, lazy: what the library scan and playlists do,
+            // cached: lazy with the song already in the metadata cache
+            for (String parse : new String[]{"full", "lazy", "cached"}){
+                benchmarks.add(songParse(fixtures, fixture, parse));
+            }
+        }
+        for (int entries : new int[]{100, 10000}){
+            for (String format : new String[]{"txt", PlaylistFile.EXTENSION}){
+                benchmarks.add(playlistLoad(fixtures, new File(workDirectory, "playlists"), entries, format));
+            }
+        }
+        for (String fixture : new String[]{"cbr", "vbr"}){
+            for (int percent : new int[]{0, 10, 50, 90}){
+                benchmarks.add(seek(fixtures, fixture, percent));
+            }
+        }
+        for (String fixture : new String[]{"cbr", "vbr"}){
+            benchmarks.add(decode(fixtures, fixture));
+        }
+        return benchmarks;
+    }
+
+    private static File fixture(Mp3Fixtures fixtures, String name) throws IOException {
+        switch (name){
+            case "cbr":
+                return fixtures.cbr(SONG_SECONDS);
+            case "vbr":
+                return fixtures.vbr(SONG_SECONDS);
+            case "id3":
+                return fixtures.largeTag(SONG_SECONDS, LARGE_TAG_PICTURE_BYTES);
+            default:
+                throw new IllegalArgumentException("unknown fixture " + name);
+        }
+    }
+
+    // new Song(path), cold parses move the file's modified time on every op so the metadata cache misses
+    private static Benchmark songParse(final Mp3Fixtures fixtures, final String fixture, final String parse){
+        return new Benchmark("songParse", Benchmark.Mode.AVERAGE_TIME, "us/op") {
+            private File file;
+            private long lastModified;
+            private long touches;
+
+            @Override
+            public void setup() throws Exception {
+                file = fixture(fixtures, fixture);
+                lastModified = file.lastModified();
+                if (parse.equals("cached")) new Song(file.getPath(), true);
+            }
+
+            @Override
+            public long run() throws Exception {
+                if (!parse.equals("cached")) file.setLastModified(lastModified + ++touches * 1000);
+                Song song = new Song(file.getPath(), !parse.equals("full"));
+                if (!song.isLoaded()) throw new IllegalStateException("cannot parse " + file);
+                return 1;
+            }
+
+            @Override
+            public void tearDown() throws Exception {
+                file.setLastModified(lastModified);
+            }
+        }.param("fixture", fixture).param("parse", parse);
+    }
+
+    // a whole PlaylistLoader run without the music player, with the songs already in the metadata cache (a cold
+    // parse of every song is what songParse measures)
+    private static Benchmark playlistLoad(final Mp3Fixtures fixtures, final File directory, final int entries,
+                                          final String format){
+        return new Benchmark("playlistLoad", Benchmark.Mode.AVERAGE_TIME, "ms/op") {
+            private File playlistFile;
+
+            @Override
+            public void setup() throws Exception {
+                File song = fixtures.cbr(PLAYLIST_SONG_SECONDS);
+                File songDirectory = new File(directory, "songs");
+                Files.createDirectories(songDirectory.toPath());
+
+                List<String> filePaths = new ArrayList<>();
+                for (int i = 0; i < entries; i++){
+                    Path link = new File(songDirectory, String.format("song%05d.mp3", i)).toPath();
+                    if (!Files.exists(link)){
+                        try{
+                            Files.createLink(link, song.toPath());
+                        } catch (IOException | UnsupportedOperationException e){
+                            Files.copy(song.toPath(), link);
+                        }
+                    }
+                    filePaths.add(link.toString());
+                }
+
+                playlistFile = new File(directory, entries + "." + format);
+                if (format.equals(PlaylistFile.EXTENSION)){
+                    try (PlaylistFile.Writer writer = new PlaylistFile.Writer(playlistFile)){
+                        for (String filePath : filePaths) writer.write(Song.readMetadata(filePath));
+                    }
+                } else{
+                    try (PrintWriter writer = new PrintWriter(playlistFile, StandardCharsets.UTF_8.name())){
+                        for (String filePath : filePaths) writer.println(filePath);
+                    }
+                }
+
+                // fills the metadata cache
+                run();
+            }
+
+            @Override
+            public long run() throws Exception {
+                PlaylistLoader loader = new PlaylistLoader(playlistFile, null) {
+                    @Override
+                    protected void process(List<SongMetadataCache.Entry> songs) {
+                        // no music player to hand the songs to
+                    }
+
+                    @Override
+                    protected void done() {
+                    }
+                };
+                loader.execute();
+                int loaded = loader.get();
+                if (loaded != entries) throw new IllegalStateException("loaded " + loaded + " of " + entries + " songs");
+                return 1;
+            }
+        }.param("entries", entries).param("format", format);
+    }
+
+    // opening a decoder at a frame and decoding the first frame, which is the time from a seek until there is
+    // audio to play (the seek index is built in setup, like it is in the background while a song plays)
+    private static Benchmark seek(final Mp3Fixtures fixtures, final String fixture, final int percent){
+        return new Benchmark("seek", Benchmark.Mode.AVERAGE_TIME, "us/op") {
+            private Song song;
+            private int frame;
+
+            @Override
+            public void setup() throws Exception {
+                song = new Song(fixture(fixtures, fixture).getPath());
+                if (song.getSeekIndex() == null) throw new IllegalStateException("no seek index for " + fixture);
+                frame = (int) ((long) song.getMp3File().getFrameCount() * percent / 100);
+            }
+
+            @Override
+            public long run() throws Exception {
+                TrackDecoder decoder = new TrackDecoder(song, frame);
+                try{
+                    if (decoder.decodeFrame() < 0) throw new IllegalStateException("nothing to decode at " + frame);
+                } finally{
+                    decoder.close();
+                }
+                return 1;
+            }
+        }.param("fixture", fixture).param("position", percent + "%");
+    }
+
+    // decoding a whole song as fast as possible, the pcm goes nowhere (no audio line)
+    private static Benchmark decode(final Mp3Fixtures fixtures, final String fixture){
+        return new Benchmark("decode", Benchmark.Mode.THROUGHPUT, "frames/s") {
+            private Song song;
+
+            //keeps the jit from skipping the decoded samples
+            private long checksum;
+
+            @Override
+            public void setup() throws Exception {
+                song = new Song(fixture(fixtures, fixture).getPath(), true);
+            }
+
+            @Override
+            public long run() throws Exception {
+                TrackDecoder decoder = new TrackDecoder(song, 0, false);
+                long frames = 0;
+                try{
+                    int length;
+                    while ((length = decoder.decodeFrame()) >= 0){
+                        if (length > 0) checksum += decoder.getBuffer()[decoder.getOffset()];
+                        frames++;
+                    }
+                } finally{
+                    decoder.close();
+                }
+                return frames;
+            }
+
+            @Override
+            public void tearDown() {
+                if (checksum == Long.MIN_VALUE) System.out.println(checksum);
+            }
+        }.param("fixture", fixture);
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+//writes the mp3 files the benchmarks run on, so nothing has to be downloaded
+//
+//there is no mp3 encoder in lib/ so the frames are put together by hand: valid MPEG-1 layer III headers with zeroed
+//side info and main data, which decodes to silence but still goes through the whole synthesis in JLayer (only the
+//huffman decoding of real audio is missing). everything is made from fixed seeds so the files are the same every run
+public class Mp3Fixtures {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_FRAME = 1152;
+
+    //MPEG-1 layer III bitrates (kbps) by bitrate index
+    private static final int[] BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int BITRATE_INDEX_128 = 9;
+
+    //stereo, so the side info is 32 bytes and the Xing header comes right after it
+    private static final int SIDE_INFO_SIZE = 32;
+
+    private final File directory;
+
+    public Mp3Fixtures(File directory) {
+        this.directory = directory;
+    }
+
+    // constant 128kbps with a small tag
+    public File cbr(int seconds) throws IOException {
+        return write("cbr-" + seconds + "s.mp3", tag("CBR Fixture", "Bench", 0), cbrFrames(seconds), false);
+    }
+
+    // bitrate changes every frame, with a Xing header (frame count, byte count and seek table) like LAME writes
+    public File vbr(int seconds) throws IOException {
+        return write("vbr-" + seconds + "s.mp3", tag("VBR Fixture", "Bench", 0), vbrFrames(seconds), true);
+    }
+
+    // constant bitrate behind a tag with a big cover picture, which every tag reader has to get past first
+    public File largeTag(int seconds, int pictureBytes) throws IOException {
+        return write("id3-" + seconds + "s-" + pictureBytes / 1024 + "k.mp3", tag("ID3 Fixture", "Bench", pictureBytes),
+                cbrFrames(seconds), false);
+    }
+
+    private File write(String name, byte[] tag, byte[][] frames, boolean xing) throws IOException {
+        File file = new File(directory, name);
+        if (file.isFile()) return file;
+
+        Files.createDirectories(directory.toPath());
+        File tempFile = new File(directory, name + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)){
+            out.write(tag);
+            if (xing) out.write(xingFrame(frames));
+            for (byte[] frame : frames) out.write(frame);
+        }
+        if (!tempFile.renameTo(file)) throw new IOException("cannot create " + file);
+        return file;
+    }
+
+    private static byte[][] cbrFrames(int seconds){
+        int count = frameCount(seconds);
+        byte[][] frames = new byte[count][];
+        long remainder = 0;
+        for (int i = 0; i < count; i++){
+            // the padding slot keeps the average at exactly 128kbps
+            long bytes = 144000L * BITRATES[BITRATE_INDEX_128];
+            remainder += bytes % SAMPLE_RATE;
+            boolean padding = remainder >= SAMPLE_RATE;
+            if (padding) remainder -= SAMPLE_RATE;
+            frames[i] = frame(BITRATE_INDEX_128, padding);
+        }
+        return frames;
+    }
+
+    private static byte[][] vbrFrames(int seconds){
+        int count = frameCount(seconds);
+        byte[][] frames = new byte[count][];
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < count; i++){
+            // 80 to 320kbps, like a VBR encode of music
+            frames[i] = frame(6 + random.nextInt(BITRATES.length - 6), false);
+        }
+        return frames;
+    }
+
+    private static int frameCount(int seconds){
+        return (int) ((long) seconds * SAMPLE_RATE / SAMPLES_PER_FRAME);
+    }
+
+    private static byte[] frame(int bitrateIndex, boolean padding){
+        int length = 144000 * BITRATES[bitrateIndex] / SAMPLE_RATE + (padding ? 1 : 0);
+        byte[] frame = new byte[length];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB; // MPEG-1, layer III, no crc
+        frame[2] = (byte) (bitrateIndex << 4 | (padding ? 0x02 : 0)); // 44.1kHz
+        frame[3] = 0x00; // stereo
+        return frame;
+    }
+
+    // a 128kbps frame holding the Xing header instead of audio
+    private static byte[] xingFrame(byte[][] frames){
+        byte[] frame = frame(BITRATE_INDEX_128, false);
+        long totalBytes = frame.length;
+        for (byte[] audioFrame : frames) totalBytes += audioFrame.length;
+
+        int offset = 4 + SIDE_INFO_SIZE;
+        System.arraycopy("Xing".getBytes(StandardCharsets.US_ASCII), 0, frame, offset, 4);
+        putInt(frame, offset + 4, 0x7); // frames, bytes and toc
+        putInt(frame, offset + 8, frames.length);
+        putInt(frame, offset + 12, (int) totalBytes);
+
+        // toc: where each percent of the song starts, as a fraction (of 256) of the file
+        long position = frame.length;
+        int frameIndex = 0;
+        for (int percent = 0; percent < 100; percent++){
+            int target = (int) ((long) percent * frames.length / 100);
+            while (frameIndex < target) position += frames[frameIndex++].length;
+            frame[offset + 16 + percent] = (byte) Math.min(255, position * 256 / totalBytes);
+        }
+        return frame;
+    }
+
+    // ID3v2.3 tag with a title, an artist and optionally a picture of the given size
+    private static byte[] tag(String title, String artist, int pictureBytes) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeTextFrame(frames, "TIT2", title);
+        writeTextFrame(frames, "TPE1", artist);
+        if (pictureBytes > 0){
+            ByteArrayOutputStream picture = new ByteArrayOutputStream();
+            picture.write(0); // latin-1
+            picture.write("image/jpeg".getBytes(StandardCharsets.US_ASCII));
+            picture.write(0);
+            picture.write(3); // front cover
+            picture.write(0); // no description
+            byte[] data = new byte[pictureBytes];
+            new Random(pictureBytes).nextBytes(data);
+            data[0] = (byte) 0xFF;
+            data[1] = (byte) 0xD8;
+            picture.write(data);
+            writeFrame(frames, "APIC", picture.toByteArray());
+        }
+
+        byte[] body = frames.toByteArray();
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.write("ID3".getBytes(StandardCharsets.US_ASCII));
+        tag.write(3);
+        tag.write(0);
+        tag.write(0);
+        // the tag size is synchsafe (7 bits per byte)
+        tag.write(body.length >> 21 & 0x7F);
+        tag.write(body.length >> 14 & 0x7F);
+        tag.write(body.length >> 7 & 0x7F);
+        tag.write(body.length & 0x7F);
+        tag.write(body);
+        return tag.toByteArray();
+    }
+
+    private static void writeTextFrame(ByteArrayOutputStream out, String id, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, data, 1, bytes.length);
+        writeFrame(out, id, data);
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, String id, byte[] data) throws IOException {
+        out.write(id.getBytes(StandardCharsets.US_ASCII));
+        byte[] size = new byte[4];
+        putInt(size, 0, data.length);
+        out.write(size);
+        out.write(0);
+        out.write(0);
+        out.write(data);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value){
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -1,7 +1,35 @@
 import javax.swing.*;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+//starts the gui, or with --play/--decode plays a playlist (or a single mp3) from the command line without any window:
+//    --play <file>     plays it through the sound card
+//    --decode <file>   decodes it as fast as possible without playing anything (-Djamp.audioOutput=null), to measure
+//                      what the engine costs
+//either way it prints the songs as they come up and a summary at the end, followed by the engine's Metrics
+//    --export <file> <folder> [wav|pcm]   decodes every song to its own file in the folder, on all cores (see
+//                                         PcmExporter), and prints how fast each song and the whole export went
 public class App {
+
+    private static final String USAGE = "usage: App [--play <playlist or mp3> | --decode <playlist or mp3>"
+            + " | --export <playlist or mp3> <folder> [wav|pcm]]";
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--export")){
+            System.exit(runExport(args));
+        }
+        if (args.length > 0){
+            System.exit(runHeadless(args));
+        }
+
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -9,4 +37,156 @@ public class App {
             }
         });
     }
+
+    private static int runHeadless(String[] args){
+        if (args.length != 2 || !(args[0].equals("--play") || args[0].equals("--decode"))){
+            System.err.println(USAGE);
+            return 2;
+        }
+        final File file = new File(args[1]);
+        if (!file.isFile()){
+            System.err.println("no such file: " + file);
+            return 1;
+        }
+        boolean decode = args[0].equals("--decode");
+        if (decode) System.setProperty("jamp.audioOutput", "null");
+        System.setProperty("java.awt.headless", "true");
+
+        // the player's state lives on this thread, everything the player gets told to do goes through it
+        ExecutorService controlThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "player-control");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // only called on the control thread (positionChanged() isn't used), so no dispatcher is needed
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long[] songs = new long[1];
+        final long[] audioMillis = new long[1];
+        final MusicPlayer musicPlayer = new MusicPlayer(new MusicPlayer.Listener() {
+            @Override
+            public void songChanged(Song song) {
+                songs[0]++;
+                long millis = song.getLengthInMilliseconds();
+                audioMillis[0] += millis;
+                System.out.println(String.format(Locale.ROOT, "Now playing: %s - %s (%d:%02d)", song.getSongTitle(),
+                        song.getSongArtist(), millis / 60000, millis / 1000 % 60));
+            }
+
+            @Override
+            public void playingChanged(boolean playing) {
+                if (!playing) finished.countDown();
+            }
+
+            @Override
+            public void positionChanged(int frame) {
+            }
+
+            @Override
+            public void playlistLoadProgressChanged(int percent) {
+            }
+        }, controlThread);
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        long startCpu = processCpuTime(os);
+        long startTime = System.nanoTime();
+
+        controlThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (file.getName().toLowerCase(Locale.ROOT).endsWith(".mp3")){
+                    musicPlayer.loadSong(new Song(file.getPath()));
+                } else{
+                    musicPlayer.loadPlaylist(file);
+                }
+            }
+        });
+
+        try{
+            finished.await();
+        } catch (InterruptedException e){
+            return 1;
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double cpuSeconds = (processCpuTime(os) - startCpu) / 1e9;
+        double audioSeconds = audioMillis[0] / 1000.0;
+        System.out.println(String.format(Locale.ROOT,
+                "%s %d songs (%.1fs of audio) in %.2fs, %.1fx realtime, %.2fs cpu (%.1f%% of one core)",
+                decode ? "Decoded" : "Played", songs[0], audioSeconds, seconds, audioSeconds / Math.max(0.001, seconds),
+                cpuSeconds, cpuSeconds * 100 / Math.max(0.001, seconds)));
+        Metrics.snapshot().print(System.out);
+        return 0;
+    }
+
+    private static int runExport(String[] args){
+        if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].matches("(?i)wav|pcm"))){
+            System.err.println(USAGE);
+            return 2;
+        }
+        File file = new File(args[1]);
+        if (!file.isFile()){
+            System.err.println("no such file: " + file);
+            return 1;
+        }
+        PcmExporter.Format format = args.length == 4 ? PcmExporter.Format.valueOf(args[3].toUpperCase(Locale.ROOT))
+                : PcmExporter.Format.WAV;
+        System.setProperty("java.awt.headless", "true");
+
+        try{
+            List<String> filePaths = new ArrayList<>();
+            if (file.getName().toLowerCase(Locale.ROOT).endsWith(".mp3")){
+                filePaths.add(file.getPath());
+            } else{
+                try (PlaylistReader playlistReader = PlaylistReader.open(file)){
+                    PlaylistReader.Track track;
+                    while ((track = playlistReader.next()) != null) filePaths.add(track.getFilePath());
+                }
+            }
+
+            int threadCount = Runtime.getRuntime().availableProcessors();
+            long startTime = System.nanoTime();
+            List<PcmExporter.Result> results = new PcmExporter(new File(args[2]), format, threadCount).export(filePaths,
+                    new PcmExporter.Listener() {
+                        @Override
+                        public void songExported(PcmExporter.Result result) {
+                            if (result.getError() != null){
+                                System.out.println("Failed: " + result.getFilePath() + " (" + result.getError() + ")");
+                                return;
+                            }
+                            System.out.println(String.format(Locale.ROOT,
+                                    "Exported %s: %.1fs of audio in %.2fs (%.1fx realtime)",
+                                    result.getOutputFile().getName(), result.getAudioSeconds(), result.getSeconds(),
+                                    result.getRealtimeFactor()));
+                        }
+                    });
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            double audioSeconds = 0;
+            int failed = 0;
+            for (PcmExporter.Result result : results){
+                audioSeconds += result.getAudioSeconds();
+                if (result.getError() != null) failed++;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "Exported %d songs (%.1fs of audio) in %.2fs on %d threads, %.1fx realtime (%d failed)",
+                    results.size() - failed, audioSeconds, seconds, threadCount, audioSeconds / Math.max(0.001, seconds),
+                    failed));
+            return failed == 0 ? 0 : 1;
+        } catch (Exception e){
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    // cpu time of the whole process in ns, -1 if the jvm can't tell
+    private static long processCpuTime(OperatingSystemMXBean os){
+        if (os instanceof com.sun.management.OperatingSystemMXBean){
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,191 @@
+import javazoom.jl.decoder.JavaLayerException;
+
+//mixes the end of one track into the start of the next for the playback engine
+//
+//both tracks are decoded side by side (on the engine thread, a frame of each at a time) and mixed with equal power
+//fades (cos/sin, so the loudness stays the same half way through) into buffers that are allocated once, so a
+//crossfade doesn't create any garbage. the two decoders hand out frames of different sizes (the first and last
+//frames get trimmed) so whatever is left of a frame is kept for the next call.
+//the fade is as long as the outgoing track was estimated to have left, songs without an exact frame count can end
+//before it's over. the incoming track then gets ramped up to full volume from where it is over RAMP_MS (or the rest
+//of the fade if that is shorter) instead of jumping there
+public class CrossfadeMixer {
+
+    private static final int RAMP_MS = 50;
+
+    private final float[] mix = new float[TrackDecoder.MAX_FRAME_SAMPLES];
+    private final short[] output = new short[TrackDecoder.MAX_FRAME_SAMPLES];
+
+    private TrackDecoder outgoing;
+    private TrackDecoder incoming;
+    private int channels;
+
+    //samples of the last decoded frame of each track that haven't been mixed yet
+    private short[] outgoingBuffer;
+    private int outgoingOffset;
+    private int outgoingLength;
+    private boolean outgoingEnded;
+
+    private short[] incomingBuffer;
+    private int incomingOffset;
+    private int incomingLength;
+    private boolean incomingEnded;
+
+    //length of the fade and how far into it we are (in sample frames)
+    private long fadeFrames;
+    private long fadePosition;
+
+    //gain the incoming track is ramped up from once the outgoing track ended early, how long the ramp is and how far
+    //into it we are (in sample frames, 0 frames means there is no ramp yet)
+    private float rampStartGain;
+    private long rampFrames;
+    private long rampPosition;
+
+    public boolean isActive(){
+        return incoming != null;
+    }
+
+    // starts fading from the outgoing track (which gets closed once the fade is over) to the incoming one,
+    // both must have the same format
+    public void start(TrackDecoder outgoing, TrackDecoder incoming, long fadeFrames){
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+        this.fadeFrames = Math.max(1, fadeFrames);
+        channels = outgoing.getChannels();
+        fadePosition = 0;
+        outgoingLength = 0;
+        incomingLength = 0;
+        outgoingEnded = false;
+        incomingEnded = false;
+        rampFrames = 0;
+        rampPosition = 0;
+    }
+
+    // mixes the next bit of the fade into getBuffer() and returns how many samples (all channels) are in it, never more
+    // than TrackDecoder.MAX_FRAME_SAMPLES. returns -1 once the fade is over, the incoming track then carries on by itself
+    public int mix() throws JavaLayerException {
+        if (incoming == null) return -1;
+
+        if (outgoing == null){
+            // the fade is over, hand out what's left of the incoming frame and then let the track go on its own
+            if (incomingLength == 0){
+                cancel();
+                return -1;
+            }
+            int length = incomingLength;
+            System.arraycopy(incomingBuffer, incomingOffset, output, 0, length);
+            incomingLength = 0;
+            return length;
+        }
+
+        if (incomingLength == 0 && !incomingEnded){
+            int length = incoming.decodeFrame();
+            if (length < 0){
+                incomingEnded = true;
+            } else{
+                incomingBuffer = incoming.getBuffer();
+                incomingOffset = incoming.getOffset();
+                incomingLength = length;
+            }
+        }
+        if (outgoingLength == 0 && !outgoingEnded){
+            int length = outgoing.decodeFrame();
+            if (length < 0){
+                outgoingEnded = true;
+            } else{
+                outgoingBuffer = outgoing.getBuffer();
+                outgoingOffset = outgoing.getOffset();
+                outgoingLength = length;
+            }
+        }
+
+        if (fadePosition >= fadeFrames || (outgoingEnded && incomingEnded)){
+            // the outgoing track is done
+            finishFade();
+            return mix();
+        }
+        if (outgoingEnded) return ramp();
+
+        // mix as much as both tracks have ready (a track that ended counts as silence)
+        int frames = (int) Math.min(fadeFrames - fadePosition, TrackDecoder.MAX_FRAME_SAMPLES / channels);
+        frames = Math.min(frames, outgoingLength / channels);
+        if (!incomingEnded) frames = Math.min(frames, incomingLength / channels);
+
+        double step = Math.PI / 2 / fadeFrames;
+        int sample = 0;
+        for (int frame = 0; frame < frames; frame++){
+            double angle = (fadePosition + frame) * step;
+            float outgoingGain = (float) Math.cos(angle);
+            float incomingGain = (float) Math.sin(angle);
+            for (int channel = 0; channel < channels; channel++, sample++){
+                float value = outgoingBuffer[outgoingOffset + sample] * outgoingGain;
+                if (!incomingEnded) value += incomingBuffer[incomingOffset + sample] * incomingGain;
+                mix[sample] = value;
+            }
+        }
+        clip(sample);
+
+        outgoingOffset += sample;
+        outgoingLength -= sample;
+        if (!incomingEnded){
+            incomingOffset += sample;
+            incomingLength -= sample;
+        }
+        fadePosition += frames;
+        if (fadePosition >= fadeFrames) finishFade();
+        return sample;
+    }
+
+    // the outgoing track ended before the fade was over, brings the incoming track up to full volume on its own
+    private int ramp(){
+        if (rampFrames == 0){
+            rampStartGain = (float) Math.sin(Math.PI / 2 * fadePosition / fadeFrames);
+            rampFrames = Math.max(1, Math.min(fadeFrames - fadePosition, (long) incoming.getSampleRate() * RAMP_MS / 1000));
+        }
+
+        int frames = (int) Math.min(rampFrames - rampPosition, incomingLength / channels);
+        int sample = 0;
+        for (int frame = 0; frame < frames; frame++){
+            float gain = rampStartGain + (1 - rampStartGain) * (rampPosition + frame) / rampFrames;
+            for (int channel = 0; channel < channels; channel++, sample++){
+                mix[sample] = incomingBuffer[incomingOffset + sample] * gain;
+            }
+        }
+        clip(sample);
+
+        incomingOffset += sample;
+        incomingLength -= sample;
+        rampPosition += frames;
+        if (rampPosition >= rampFrames) finishFade();
+        return sample;
+    }
+
+    // copies the mixed samples into the output, clipped to 16 bits
+    private void clip(int samples){
+        for (int i = 0; i < samples; i++){
+            float value = mix[i];
+            output[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+        }
+    }
+
+    public short[] getBuffer(){
+        return output;
+    }
+
+    // stops the fade right away (when the engine seeks or stops), the incoming track is left alone
+    public void cancel(){
+        finishFade();
+        incoming = null;
+        incomingBuffer = null;
+        incomingLength = 0;
+    }
+
+    private void finishFade(){
+        if (outgoing != null){
+            outgoing.close();
+            outgoing = null;
+            outgoingBuffer = null;
+            outgoingLength = 0;
+        }
+    }
+}
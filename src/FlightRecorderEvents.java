@@ -0,0 +1,123 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+//JDK Flight Recorder events of the player, they show up under "MP3 Player" in JDK Mission Control
+//
+//they cost nothing unless a recording is running, e.g.
+//    java -XX:StartFlightRecording=filename=player.jfr,settings=profile ...   (or jcmd <pid> JFR.start)
+//the same measurements also go into Metrics so they can be looked at without a recording
+public class FlightRecorderEvents {
+
+    private FlightRecorderEvents() {
+    }
+
+    @Name("jamp.SongParse")
+    @Label("Song Parse")
+    @Description("Reading a song's tag and mp3 header (or taking them from the metadata cache)")
+    @Category({"MP3 Player", "Library"})
+    @StackTrace(false)
+    public static class SongParse extends Event {
+        @Label("File")
+        String filePath;
+
+        @Label("Lazy")
+        @Description("Only the mp3 header was read, the frame scan was put off")
+        boolean lazy;
+
+        @Label("Cached")
+        @Description("The metadata came from the metadata cache")
+        boolean cached;
+
+        @Label("Loaded")
+        boolean loaded;
+    }
+
+    @Name("jamp.PlaylistLoad")
+    @Label("Playlist Load")
+    @Description("Loading a whole playlist in the background")
+    @Category({"MP3 Player", "Library"})
+    @StackTrace(false)
+    public static class PlaylistLoad extends Event {
+        @Label("Playlist")
+        String playlistPath;
+
+        @Label("Songs")
+        int songs;
+
+        @Label("Cancelled")
+        boolean cancelled;
+    }
+
+    @Name("jamp.Seek")
+    @Label("Seek")
+    @Description("A seek, from the seek request to the first audio from the new position being written")
+    @Category({"MP3 Player", "Playback"})
+    @StackTrace(false)
+    public static class Seek extends Event {
+        @Label("File")
+        String filePath;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+
+    //one per mp3 frame, so only the slow ones are recorded unless the threshold gets lowered
+    @Name("jamp.FrameDecode")
+    @Label("Frame Decode")
+    @Description("Decoding one mp3 frame on the playback engine thread")
+    @Category({"MP3 Player", "Playback"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static class FrameDecode extends Event {
+        @Label("File")
+        String filePath;
+    }
+
+    @Name("jamp.Underrun")
+    @Label("Audio Underrun")
+    @Description("The audio line played everything it had before new audio arrived, which is heard as a dropout")
+    @Category({"MP3 Player", "Playback"})
+    @StackTrace(false)
+    public static class Underrun extends Event {
+        @Label("Buffered Samples")
+        @Description("Samples waiting in the ring buffer when the line was found empty")
+        int bufferedSamples;
+    }
+
+    @Name("jamp.TrackTransition")
+    @Label("Track Transition")
+    @Description("Moving on from one song to the next")
+    @Category({"MP3 Player", "Playback"})
+    @StackTrace(false)
+    public static class TrackTransition extends Event {
+        @Label("Kind")
+        @Description("gapless, crossfade or restart (the next song needed a new audio line)")
+        String kind;
+
+        @Label("From")
+        String fromFilePath;
+
+        @Label("To")
+        String toFilePath;
+
+        @Label("Prepared")
+        @Description("The next song had been opened and predecoded ahead of time")
+        boolean prepared;
+
+        @Label("Gap")
+        @Description("For a restart the silence between the songs, otherwise how long the engine thread took to switch"
+                + " (the buffered audio keeps playing meanwhile)")
+        @Timespan
+        long gap;
+    }
+}
@@ -0,0 +1,207 @@
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//walks library folders in the background and adds every mp3 in them to the MusicLibrary
+//
+//the walk itself runs on the worker thread and hands each mp3 to a pool of parser threads. parsing is mostly waiting
+//on the disk, so the pool is bigger than the number of cores to keep several reads in flight at once.
+//files that are already in the library and haven't changed are skipped, files that can't be read are counted and skipped
+public class LibraryScanner extends SwingWorker<Integer, String> {
+
+    //parser threads per core, a few outstanding reads per core keeps the disk queue busy
+    private static final int THREADS_PER_CORE = 2;
+
+    //how many files each parser thread may have queued up so a huge folder doesn't queue 100k tasks at once
+    private static final int FILES_IN_FLIGHT_PER_THREAD = 16;
+
+    //how often the status gets updated while scanning
+    private static final long STATUS_INTERVAL_MS = 250;
+
+    private final List<Path> roots;
+    private final MusicLibrary musicLibrary;
+    private final MusicPlayerGUI musicPlayerGUI;
+
+    private final AtomicInteger filesFound = new AtomicInteger();
+    private final AtomicInteger filesParsed = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private long lastStatusTime;
+
+    public LibraryScanner(List<Path> roots, MusicLibrary musicLibrary, MusicPlayerGUI musicPlayerGUI) {
+        this.roots = new ArrayList<>();
+        for (Path root : roots) this.roots.add(root.toAbsolutePath().normalize());
+        this.musicLibrary = musicLibrary;
+        this.musicPlayerGUI = musicPlayerGUI;
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        long startTime = System.nanoTime();
+
+        int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE);
+        ExecutorService parsers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "library-scanner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Semaphore inFlight = new Semaphore(threadCount * FILES_IN_FLIGHT_PER_THREAD);
+
+        // every file that is still there, anything else under the roots gets dropped from the library
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        try{
+            for (Path root : roots){
+                musicLibrary.addRoot(root);
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                        if (isCancelled()) return FileVisitResult.TERMINATE;
+                        if (!attributes.isRegularFile() || !isMp3(path)) return FileVisitResult.CONTINUE;
+
+                        final String filePath = path.toString();
+                        seen.add(filePath);
+                        filesFound.incrementAndGet();
+
+                        // nothing to do for files that haven't changed since the last scan
+                        SongMetadataCache.Entry known = musicLibrary.get(filePath);
+                        if (known != null && known.matches(attributes.size(), attributes.lastModifiedTime().toMillis())){
+                            reportStatus(startTime, false);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        try{
+                            inFlight.acquire();
+                        } catch (InterruptedException e){
+                            return FileVisitResult.TERMINATE;
+                        }
+                        parsers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try{
+                                    if (!indexFile(filePath, musicLibrary)) filesFailed.incrementAndGet();
+                                } catch (Exception e){
+                                    // one broken file shouldn't stop the scan
+                                    e.printStackTrace();
+                                    filesFailed.incrementAndGet();
+                                } finally{
+                                    filesParsed.incrementAndGet();
+                                    inFlight.release();
+                                }
+                            }
+                        });
+                        reportStatus(startTime, false);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        // unreadable folder or file, keep going with the rest (the final status says how many)
+                        filesFailed.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+
+            parsers.shutdown();
+            while (!parsers.awaitTermination(STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS)){
+                if (isCancelled()) break;
+                reportStatus(startTime, false);
+            }
+        } finally{
+            parsers.shutdownNow();
+        }
+        if (isCancelled()) return musicLibrary.size();
+
+        // forget songs that were deleted since the last scan
+        for (SongMetadataCache.Entry song : musicLibrary.getSongs()){
+            String filePath = song.getFilePath();
+            if (!seen.contains(filePath) && isUnderRoot(filePath)) musicLibrary.remove(filePath);
+        }
+        musicLibrary.save();
+
+        reportStatus(startTime, true);
+        return musicLibrary.size();
+    }
+
+    // parses the file through the normal Song path (which also fills the metadata cache) and puts it in the library,
+    // returns false if the file couldn't be read
+    public static boolean indexFile(String filePath, MusicLibrary musicLibrary){
+        SongMetadataCache.Entry entry = Song.readMetadata(filePath);
+        if (entry == null){
+            musicLibrary.remove(filePath);
+            return false;
+        }
+        musicLibrary.put(entry);
+        return true;
+    }
+
+    public static boolean isMp3(Path path){
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".mp3");
+    }
+
+    private boolean isUnderRoot(String filePath){
+        for (Path root : roots){
+            if (filePath.startsWith(root.toString() + File.separator)) return true;
+        }
+        return false;
+    }
+
+    private void reportStatus(long startTime, boolean finished){
+        long now = System.nanoTime();
+        if (!finished && now - lastStatusTime < TimeUnit.MILLISECONDS.toNanos(STATUS_INTERVAL_MS)) return;
+        lastStatusTime = now;
+
+        double seconds = Math.max(0.001, (now - startTime) / 1e9);
+        int found = filesFound.get();
+        String status;
+        if (finished){
+            status = String.format("Scanned %d files in %.1fs (%.0f files/s, %d failed)", found, seconds,
+                    found / seconds, filesFailed.get());
+        } else{
+            status = String.format("Scanning library %d/%d (%.0f files/s)", filesParsed.get(), found,
+                    filesParsed.get() / seconds);
+        }
+        publish(status);
+    }
+
+    @Override
+    protected void process(List<String> statuses) {
+        // runs on the EDT, only the latest status matters
+        if (!isCancelled()) musicPlayerGUI.updateLibraryScanStatus(statuses.get(statuses.size() - 1));
+    }
+
+    @Override
+    protected void done() {
+        // runs on the EDT
+        if (isCancelled()){
+            musicPlayerGUI.updateLibraryScanStatus(null);
+            return;
+        }
+        try{
+            get();
+            musicPlayerGUI.libraryScanFinished(roots);
+        } catch (Exception e){
+            e.printStackTrace();
+            musicPlayerGUI.updateLibraryScanStatus("Library scan failed");
+        }
+    }
+}
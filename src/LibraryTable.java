@@ -0,0 +1,215 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//column store of every track that is in a playlist, tracks are referred to by int id (their row)
+//
+//a Song object (with its tags, mp3 header and mapped file) costs a lot more than what a playlist needs to show,
+//so playlists only keep ids and a Song is only made for the track that is playing and the one after it.
+//each column is a primitive array: titles, artists and folders are deduplicated into string pools (an album's
+//worth of tracks shares one artist and one folder string) and file names are packed into a single utf-8 byte array.
+//rows are only ever added so ids stay valid for as long as the app runs
+public class LibraryTable {
+
+    private static LibraryTable instance;
+
+    public static synchronized LibraryTable getInstance(){
+        if (instance == null) instance = new LibraryTable();
+        return instance;
+    }
+
+    private int size;
+
+    // columns
+    private int[] folderIds = new int[1024];
+    private int[] nameOffsets = new int[1025];
+    private byte[] names = new byte[16 * 1024];
+    private int[] titleIds = new int[1024];
+    private int[] artistIds = new int[1024];
+    private int[] lengthsInMilliseconds = new int[1024];
+    private int[] frameCounts = new int[1024];
+    private boolean[] exactFrameCounts = new boolean[1024];
+
+    //hash code of each file path so that looking up a path rarely has to rebuild the path string
+    private int[] pathHashes = new int[1024];
+
+    private final StringPool folders = new StringPool();
+    private final StringPool titles = new StringPool();
+    private final StringPool artists = new StringPool();
+
+    //open addressing table from file path to id (slot holds id + 1, 0 is empty) so a track is only stored once
+    private int[] pathSlots = new int[2048];
+
+    // adds the track (or returns the id it already has)
+    public synchronized int add(SongMetadataCache.Entry song){
+        String filePath = normalize(song.getFilePath());
+        int slot = findPathSlot(filePath);
+        if (pathSlots[slot] != 0){
+            // the file was added before, keep its id but take the newer metadata
+            int id = pathSlots[slot] - 1;
+            setMetadata(id, song);
+            return id;
+        }
+
+        if (size == folderIds.length) grow();
+        int id = size++;
+
+        File file = new File(filePath);
+        folderIds[id] = folders.intern(file.getParent() == null ? "" : file.getParent());
+        byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+        if (nameOffsets[id] + name.length > names.length){
+            names = Arrays.copyOf(names, Math.max(names.length * 2, nameOffsets[id] + name.length));
+        }
+        System.arraycopy(name, 0, names, nameOffsets[id], name.length);
+        nameOffsets[id + 1] = nameOffsets[id] + name.length;
+        setMetadata(id, song);
+
+        pathHashes[id] = filePath.hashCode();
+        pathSlots[slot] = id + 1;
+        if (size * 2 > pathSlots.length) rehashPaths();
+        return id;
+    }
+
+    private void setMetadata(int id, SongMetadataCache.Entry song){
+        titleIds[id] = titles.intern(song.getSongTitle());
+        artistIds[id] = artists.intern(song.getSongArtist());
+        lengthsInMilliseconds[id] = (int) Math.min(Integer.MAX_VALUE, song.getLengthInMilliseconds());
+        frameCounts[id] = song.getFrameCount();
+        exactFrameCounts[id] = song.isFrameCountExact();
+    }
+
+    // -1 if the file isn't in the table
+    public synchronized int idOf(String filePath){
+        int slot = findPathSlot(normalize(filePath));
+        return pathSlots[slot] - 1;
+    }
+
+    // makes a full Song for the track from what is already known about it, without reading the file
+    // (the metadata cache is newer if the song got scanned or analyzed since it was added, the table has the rest)
+    public Song materialize(int id){
+        String filePath = getFilePath(id);
+        SongMetadataCache.Entry cached = SongMetadataCache.getInstance().peek(filePath);
+        if (cached != null) return new Song(cached);
+
+        synchronized (this){
+            int length = lengthsInMilliseconds[id];
+            return new Song(new SongMetadataCache.Entry(filePath, 0, 0, getSongTitle(id), getSongArtist(id), length,
+                    frameCounts[id], length == 0 ? 0 : (double) frameCounts[id] / length, exactFrameCounts[id]));
+        }
+    }
+
+    // paths are stored the way File writes them (getFilePath() puts them back together from the folder and the name),
+    // which is also how the metadata cache keys them
+    private static String normalize(String filePath){
+        return new File(filePath).getPath();
+    }
+
+    public synchronized String getFilePath(int id){
+        String folder = folders.get(folderIds[id]);
+        String name = new String(names, nameOffsets[id], nameOffsets[id + 1] - nameOffsets[id], StandardCharsets.UTF_8);
+        if (folder.isEmpty()) return name;
+        return folder.endsWith(File.separator) ? folder + name : folder + File.separator + name;
+    }
+
+    public synchronized String getSongTitle(int id){
+        return titles.get(titleIds[id]);
+    }
+
+    public synchronized String getSongArtist(int id){
+        return artists.get(artistIds[id]);
+    }
+
+    public synchronized int getLengthInMilliseconds(int id){
+        return lengthsInMilliseconds[id];
+    }
+
+    public synchronized int getFrameCount(int id){
+        return frameCounts[id];
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    private void grow(){
+        int capacity = folderIds.length * 2;
+        folderIds = Arrays.copyOf(folderIds, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        titleIds = Arrays.copyOf(titleIds, capacity);
+        artistIds = Arrays.copyOf(artistIds, capacity);
+        lengthsInMilliseconds = Arrays.copyOf(lengthsInMilliseconds, capacity);
+        frameCounts = Arrays.copyOf(frameCounts, capacity);
+        exactFrameCounts = Arrays.copyOf(exactFrameCounts, capacity);
+        pathHashes = Arrays.copyOf(pathHashes, capacity);
+    }
+
+    // returns the slot that holds the path or the empty slot where it would go
+    private int findPathSlot(String filePath){
+        int hash = filePath.hashCode();
+        int mask = pathSlots.length - 1;
+        int slot = mix(hash) & mask;
+        while (pathSlots[slot] != 0){
+            int id = pathSlots[slot] - 1;
+            if (pathHashes[id] == hash && getFilePath(id).equals(filePath)) break;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehashPaths(){
+        int[] slots = new int[pathSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++){
+            int slot = mix(pathHashes[id]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+        pathSlots = slots;
+    }
+
+    // spreads the bits of a hash code so that similar paths don't end up in neighbouring slots
+    private static int mix(int hash){
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    //strings stored once each and referred to by int id
+    private static class StringPool {
+        private String[] values = new String[256];
+        private int size;
+
+        //open addressing table of id + 1 (0 is empty)
+        private int[] slots = new int[512];
+
+        int intern(String value){
+            if (value == null) value = "";
+            int mask = slots.length - 1;
+            int slot = mix(value.hashCode()) & mask;
+            while (slots[slot] != 0){
+                if (values[slots[slot] - 1].equals(value)) return slots[slot] - 1;
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            int id = size++;
+            values[id] = value;
+            slots[slot] = id + 1;
+            if (size * 2 > slots.length) rehash();
+            return id;
+        }
+
+        String get(int id){
+            return values[id];
+        }
+
+        private void rehash(){
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < size; id++){
+                int slot = mix(values[id].hashCode()) & mask;
+                while (slots[slot] != 0) slot = (slot + 1) & mask;
+                slots[slot] = id + 1;
+            }
+        }
+    }
+}
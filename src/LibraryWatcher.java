@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+//keeps the MusicLibrary up to date after the first scan by watching the library folders for changes
+//
+//events are collected into batches (copying an album fires a handful of events per file) and only the files that
+//changed get parsed again. if the watch service drops events (OVERFLOW) the watcher can't know what it missed,
+//so it falls back to comparing the size and last modified time of every file with the library
+public class LibraryWatcher {
+
+    //a batch is handled once no new events came in for this long
+    private static final long QUIET_MS = 500;
+
+    //but never held back longer than this while events keep coming in
+    private static final long MAX_BATCH_DELAY_MS = 5000;
+
+    //how often the watcher looks for new roots while there's nothing else to do
+    private static final long IDLE_POLL_MS = 1000;
+
+    private final MusicLibrary musicLibrary;
+    private final WatchService watchService;
+
+    //roots waiting to be registered by the watcher thread
+    private final ConcurrentLinkedQueue<Path> newRoots = new ConcurrentLinkedQueue<>();
+    private final Set<Path> roots = new HashSet<>();
+
+    // only touched by the watcher thread
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<>();
+
+    //changed paths and whether they were created (rather than just modified or deleted)
+    private final Map<Path, Boolean> pendingPaths = new LinkedHashMap<>();
+    private long firstPendingTime;
+    private long lastEventTime;
+    private boolean overflowed;
+
+    public LibraryWatcher(MusicLibrary musicLibrary) throws IOException {
+        this.musicLibrary = musicLibrary;
+        watchService = FileSystems.getDefault().newWatchService();
+
+        // the library could have changed while the app was closed, check it like after an overflow
+        // (which also starts watching every folder)
+        for (String root : musicLibrary.getRoots()) roots.add(Paths.get(root));
+        overflowed = !roots.isEmpty();
+
+        Thread watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWatcher();
+            }
+        }, "library-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.setPriority(Thread.MIN_PRIORITY);
+        watcherThread.start();
+    }
+
+    // starts watching a folder (that was just scanned)
+    public void addRoot(Path root){
+        newRoots.add(root.toAbsolutePath().normalize());
+    }
+
+    public void stop(){
+        try{
+            watchService.close();
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void runWatcher(){
+        while (true){
+            try{
+                Path root;
+                while ((root = newRoots.poll()) != null){
+                    if (roots.add(root)) syncTree(root, null);
+                }
+
+                long now = System.currentTimeMillis();
+                boolean batchWaiting = overflowed || !pendingPaths.isEmpty();
+                if (batchWaiting && (now - lastEventTime >= QUIET_MS || now - firstPendingTime >= MAX_BATCH_DELAY_MS)){
+                    handleBatch();
+                    continue;
+                }
+
+                WatchKey key = watchService.poll(batchWaiting ? QUIET_MS : IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) collectEvents(key);
+            } catch (ClosedWatchServiceException | InterruptedException e){
+                return;
+            } catch (Exception e){
+                // keep watching even if one batch went wrong
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void collectEvents(WatchKey key){
+        Path folder = watchedFolders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()){
+            if (firstPendingTime == 0) firstPendingTime = System.currentTimeMillis();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                // events got lost, only a full comparison can tell what changed
+                overflowed = true;
+            } else if (folder != null){
+                Path path = folder.resolve((Path) event.context());
+                boolean created = event.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+                pendingPaths.merge(path, created, Boolean::logicalOr);
+            }
+        }
+        lastEventTime = System.currentTimeMillis();
+
+        // the folder is gone (deleted or moved away)
+        if (!key.reset()) watchedFolders.remove(key);
+    }
+
+    private void handleBatch() throws IOException {
+        int changed;
+        if (overflowed){
+            changed = resync();
+        } else{
+            changed = 0;
+            Set<String> gonePaths = new HashSet<>();
+            for (Map.Entry<Path, Boolean> pending : pendingPaths.entrySet()){
+                changed += handlePath(pending.getKey(), pending.getValue(), gonePaths);
+            }
+            changed += removeGone(gonePaths);
+        }
+        pendingPaths.clear();
+        overflowed = false;
+        firstPendingTime = 0;
+
+        if (changed > 0) musicLibrary.save();
+    }
+
+    // returns how many library songs were added or updated, paths that are gone get added to gonePaths
+    private int handlePath(Path path, boolean created, Set<String> gonePaths) throws IOException {
+        if (Files.isDirectory(path)){
+            // a new (or moved in) folder, changes inside folders that are already watched come from their own events
+            return created ? syncTree(path, null) : 0;
+        }
+        if (Files.isRegularFile(path)){
+            return LibraryScanner.isMp3(path) && updateIfChanged(path.toString(), path.toFile()) ? 1 : 0;
+        }
+
+        // deleted or moved away, removed together with the rest of the batch
+        gonePaths.add(path.toString());
+        return 0;
+    }
+
+    // removes the songs that are one of the paths or in a folder that is, returns how many were removed
+    // (deleting a folder sends an event for every file in it, so the library is only gone through once per batch)
+    private int removeGone(Set<String> gonePaths){
+        if (gonePaths.isEmpty()) return 0;
+        int removed = 0;
+        for (SongMetadataCache.Entry song : musicLibrary.getSongs()){
+            String filePath = song.getFilePath();
+            // the file itself and then every folder it is in
+            for (int end = filePath.length(); end > 0; end = filePath.lastIndexOf(File.separatorChar, end - 1)){
+                if (gonePaths.contains(filePath.substring(0, end))){
+                    musicLibrary.remove(filePath);
+                    removed++;
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // the mtime diff: walks every root, parses files that changed and drops songs that are gone
+    private int resync() throws IOException {
+        Set<String> seen = new HashSet<>();
+        Set<Path> presentRoots = new HashSet<>();
+        int changed = 0;
+        for (Path root : roots){
+            // a root that's missing (e.g. an unplugged drive) keeps its songs until it's back
+            if (!Files.isDirectory(root)) continue;
+            presentRoots.add(root);
+            changed += syncTree(root, seen);
+        }
+
+        for (SongMetadataCache.Entry song : musicLibrary.getSongs()){
+            if (!seen.contains(song.getFilePath()) && isUnderRoot(song.getFilePath(), presentRoots)){
+                musicLibrary.remove(song.getFilePath());
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    // watches the folder and every folder in it and parses every mp3 in there that isn't in the library or changed,
+    // returns how many songs were updated (registering a folder that's already watched does nothing)
+    private int syncTree(Path folder, final Set<String> seen) throws IOException {
+        final int[] changed = new int[1];
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedFolders.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                if (!attributes.isRegularFile() || !LibraryScanner.isMp3(path)) return FileVisitResult.CONTINUE;
+                if (seen != null) seen.add(path.toString());
+                if (updateIfChanged(path.toString(), path.toFile())) changed[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // unreadable, the next change to it brings it back here
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return changed[0];
+    }
+
+    // parses the file again if it isn't in the library or changed since it was parsed, returns true if that changed
+    // the library (a file that fails to parse only changes it if it was in the library before, it gets dropped)
+    private boolean updateIfChanged(String filePath, File file){
+        SongMetadataCache.Entry known = musicLibrary.get(filePath);
+        if (known != null && known.matches(file.length(), file.lastModified())) return false;
+
+        // a file that's still being copied fails to parse, the events from the rest of the copy bring it back here
+        return LibraryScanner.indexFile(filePath, musicLibrary) || known != null;
+    }
+
+    private static boolean isUnderRoot(String filePath, Set<Path> roots){
+        for (Path root : roots){
+            if (filePath.startsWith(root.toString() + File.separator)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,229 @@
+import javax.swing.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//works out the replay gain of songs in the background by decoding them and measuring their loudness (see LoudnessMeter)
+//
+//decoding is all cpu so there is one analyzer thread per core, each decoding a whole song at a time. songs are grouped
+//into albums by folder, once every song of an album is done the album gain is worked out and the results of the whole
+//album go into the metadata cache. songs that already have a replay gain (from an earlier run or from their tags) are
+//skipped, so stopping the analysis only loses the albums that were half done
+public class LoudnessAnalyzer extends SwingWorker<Integer, String> {
+
+    //how many songs each analyzer thread may have queued up
+    private static final int SONGS_IN_FLIGHT_PER_THREAD = 2;
+
+    //how often the status gets updated while analyzing
+    private static final long STATUS_INTERVAL_MS = 250;
+
+    private final List<String> filePaths;
+    private final MusicPlayerGUI musicPlayerGUI;
+
+    private final AtomicInteger songsToAnalyze = new AtomicInteger();
+    private final AtomicInteger songsAnalyzed = new AtomicInteger();
+    private final AtomicInteger songsFailed = new AtomicInteger();
+    private long lastStatusTime;
+
+    public LoudnessAnalyzer(List<String> filePaths, MusicPlayerGUI musicPlayerGUI) {
+        this.filePaths = filePaths;
+        this.musicPlayerGUI = musicPlayerGUI;
+    }
+
+    //the songs of one folder and what has been measured so far
+    private class Album {
+        final List<String> filePaths;
+        final LoudnessMeter[] meters;
+        final AtomicInteger songsLeft;
+
+        Album(List<String> filePaths) {
+            this.filePaths = filePaths;
+            meters = new LoudnessMeter[filePaths.size()];
+            songsLeft = new AtomicInteger(filePaths.size());
+        }
+
+        void songDone(int index, LoudnessMeter meter){
+            // the atomic counter makes the meter written here visible to whichever thread finishes the album
+            meters[index] = meter;
+            if (songsLeft.decrementAndGet() == 0) finishAlbum(this);
+        }
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        long startTime = System.nanoTime();
+
+        // group the songs into albums, albums that are already done get skipped
+        Map<String, List<String>> folders = new TreeMap<>();
+        for (String filePath : filePaths){
+            String folder = new File(filePath).getParent();
+            folders.computeIfAbsent(folder == null ? "" : folder, key -> new ArrayList<>()).add(filePath);
+        }
+        Map<String, Album> albums = new LinkedHashMap<>();
+        SongMetadataCache metadataCache = SongMetadataCache.getInstance();
+        for (Map.Entry<String, List<String>> folder : folders.entrySet()){
+            boolean analyzed = true;
+            for (String filePath : folder.getValue()){
+                SongMetadataCache.Entry entry = metadataCache.lookup(new File(filePath));
+                if (entry == null || entry.getReplayGain() == null){
+                    analyzed = false;
+                    break;
+                }
+            }
+            if (analyzed) continue;
+            albums.put(folder.getKey(), new Album(folder.getValue()));
+            songsToAnalyze.addAndGet(folder.getValue().size());
+        }
+
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService analyzers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "loudness-analyzer");
+                thread.setDaemon(true);
+                // playback should win when there aren't enough cores for both
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        final Semaphore inFlight = new Semaphore(threadCount * SONGS_IN_FLIGHT_PER_THREAD);
+
+        try{
+            for (final Album album : albums.values()){
+                for (int i = 0; i < album.filePaths.size(); i++){
+                    if (isCancelled()) return songsAnalyzed.get();
+                    inFlight.acquire();
+
+                    final int index = i;
+                    analyzers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            LoudnessMeter meter = null;
+                            try{
+                                if (!isCancelled()) meter = analyze(album.filePaths.get(index));
+                            } catch (Exception e){
+                                // a broken file just doesn't get a replay gain
+                                e.printStackTrace();
+                            } finally{
+                                if (meter == null) songsFailed.incrementAndGet();
+                                songsAnalyzed.incrementAndGet();
+                                inFlight.release();
+                            }
+                            if (!isCancelled()) album.songDone(index, meter);
+                        }
+                    });
+                    reportStatus(startTime, false);
+                }
+            }
+
+            analyzers.shutdown();
+            while (!analyzers.awaitTermination(STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS)){
+                if (isCancelled()) break;
+                reportStatus(startTime, false);
+            }
+        } finally{
+            analyzers.shutdownNow();
+        }
+
+        reportStatus(startTime, true);
+        return songsAnalyzed.get();
+    }
+
+    // decodes the whole song through a meter, null if the song can't be decoded
+    private static LoudnessMeter analyze(String filePath) throws Exception {
+        Song song = new Song(filePath, true);
+        if (!song.isLoaded()) return null;
+
+        TrackDecoder decoder = new TrackDecoder(song, 0, false);
+        try{
+            LoudnessMeter meter = null;
+            int length;
+            while ((length = decoder.decodeFrame()) >= 0){
+                // the format is only known after the first frame
+                if (meter == null) meter = new LoudnessMeter(decoder.getSampleRate(), decoder.getChannels());
+                meter.process(decoder.getBuffer(), decoder.getOffset(), length);
+            }
+            return meter;
+        } finally{
+            decoder.close();
+        }
+    }
+
+    // works out the album gain and stores the results of every song of the album
+    private void finishAlbum(Album album){
+        List<LoudnessMeter> meters = new ArrayList<>();
+        float albumPeak = 0;
+        for (LoudnessMeter meter : album.meters){
+            if (meter == null) continue;
+            meters.add(meter);
+            albumPeak = Math.max(albumPeak, meter.getTruePeak());
+        }
+        if (meters.isEmpty()) return;
+        float albumGain = gainOf(LoudnessMeter.integratedLoudness(meters));
+
+        SongMetadataCache metadataCache = SongMetadataCache.getInstance();
+        for (int i = 0; i < album.meters.length; i++){
+            LoudnessMeter meter = album.meters[i];
+            if (meter == null) continue;
+            SongMetadataCache.Entry entry = metadataCache.lookup(new File(album.filePaths.get(i)));
+            if (entry == null) continue;
+
+            ReplayGain replayGain = new ReplayGain(gainOf(meter.getIntegratedLoudness()), meter.getTruePeak(),
+                    albumGain, albumPeak);
+            metadataCache.store(entry.withReplayGain(replayGain));
+        }
+    }
+
+    // silence gets left alone
+    private static float gainOf(double loudness){
+        return Double.isInfinite(loudness) ? 0 : ReplayGain.gainFor(loudness);
+    }
+
+    private void reportStatus(long startTime, boolean finished){
+        long now = System.nanoTime();
+        if (!finished && now - lastStatusTime < TimeUnit.MILLISECONDS.toNanos(STATUS_INTERVAL_MS)) return;
+        lastStatusTime = now;
+
+        double seconds = Math.max(0.001, (now - startTime) / 1e9);
+        int analyzed = songsAnalyzed.get();
+        String status;
+        if (finished){
+            status = String.format("Analyzed %d songs in %.1fs (%.1f songs/s, %d failed)", analyzed, seconds,
+                    analyzed / seconds, songsFailed.get());
+        } else{
+            status = String.format("Analyzing loudness %d/%d (%.1f songs/s)", analyzed, songsToAnalyze.get(),
+                    analyzed / seconds);
+        }
+        publish(status);
+    }
+
+    @Override
+    protected void process(List<String> statuses) {
+        // runs on the EDT, only the latest status matters
+        if (!isCancelled()) musicPlayerGUI.updateLibraryScanStatus(statuses.get(statuses.size() - 1));
+    }
+
+    @Override
+    protected void done() {
+        // runs on the EDT
+        if (isCancelled()){
+            musicPlayerGUI.updateLibraryScanStatus(null);
+            return;
+        }
+        try{
+            get();
+        } catch (Exception e){
+            e.printStackTrace();
+            musicPlayerGUI.updateLibraryScanStatus("Loudness analysis failed");
+        }
+    }
+}
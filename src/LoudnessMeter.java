@@ -0,0 +1,196 @@
+import java.util.List;
+
+//measures integrated loudness (EBU R128 / ITU-R BS.1770) and true peak of pcm fed to it
+//
+//the audio goes through the K-weighting filter (a high shelf and a high pass), its energy is summed up in 400ms blocks
+//that overlap by 75% and the gated mean of those blocks gives the loudness. blocks are kept in a histogram of 0.1 LU
+//bins (count and energy of each bin) instead of a list so a meter stays small no matter how long the song is, and the
+//histograms of a whole album can be added up to get the album's loudness.
+//true peak is the highest sample after 4x oversampling, which catches peaks in between samples
+public class LoudnessMeter {
+
+    //blocks quieter than this are ignored, the relative gate is this far below the ungated loudness
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+
+    //histogram of block loudness from the absolute gate up in 0.1 LU steps
+    private static final int HISTOGRAM_BINS = 1000;
+    private static final double BINS_PER_LU = 10;
+
+    //4x oversampling filter (windowed sinc), split into one set of taps per phase
+    private static final int OVERSAMPLING = 4;
+    private static final int TAPS_PER_PHASE = 12;
+    private static final float[][] OVERSAMPLING_TAPS = createOversamplingTaps();
+
+    private final int channels;
+
+    //K-weighting filter coefficients (both stages) and the state of each channel
+    private final double b0, b1, b2, a1, a2;
+    private final double c1, c2;
+    private final double[] shelfState1, shelfState2, highPassState1, highPassState2;
+
+    //energy of the current 100ms step, the last 4 steps make a block
+    private final int samplesPerStep;
+    private int stepSamples;
+    private double stepEnergy;
+    private final double[] lastSteps = new double[4];
+    private int stepCount;
+
+    private final int[] binCounts = new int[HISTOGRAM_BINS];
+    private final double[] binEnergies = new double[HISTOGRAM_BINS];
+
+    //last input samples of each channel for the oversampling filter (written round robin)
+    private final float[][] history;
+    private int historyPosition;
+    private float truePeak;
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+
+        // the BS.1770 filters are given for 48kHz, these work them out for any sample rate (same as libebur128)
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        b0 = (vh + vb * k / q + k * k) / a0;
+        b1 = 2 * (k * k - vh) / a0;
+        b2 = (vh - vb * k / q + k * k) / a0;
+        a1 = 2 * (k * k - 1) / a0;
+        a2 = (1 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        c1 = 2 * (k * k - 1) / (1 + k / q + k * k);
+        c2 = (1 - k / q + k * k) / (1 + k / q + k * k);
+
+        shelfState1 = new double[channels];
+        shelfState2 = new double[channels];
+        highPassState1 = new double[channels];
+        highPassState2 = new double[channels];
+
+        samplesPerStep = Math.max(1, sampleRate / 10);
+        history = new float[channels][TAPS_PER_PHASE];
+    }
+
+    // feeds interleaved 16 bit samples
+    public void process(short[] samples, int offset, int length){
+        int frames = length / channels;
+        int sample = offset;
+        for (int frame = 0; frame < frames; frame++){
+            double energy = 0;
+            for (int channel = 0; channel < channels; channel++, sample++){
+                float x = samples[sample] / 32768f;
+
+                // K-weighting, two biquads in transposed direct form II
+                double shelf = b0 * x + shelfState1[channel];
+                shelfState1[channel] = b1 * x - a1 * shelf + shelfState2[channel];
+                shelfState2[channel] = b2 * x - a2 * shelf;
+                double weighted = shelf + highPassState1[channel];
+                highPassState1[channel] = -2 * shelf - c1 * weighted + highPassState2[channel];
+                highPassState2[channel] = shelf - c2 * weighted;
+                energy += weighted * weighted;
+
+                history[channel][historyPosition] = x;
+                if (Math.abs(x) > truePeak) truePeak = Math.abs(x);
+            }
+            historyPosition = (historyPosition + 1) % TAPS_PER_PHASE;
+            updateTruePeak();
+
+            stepEnergy += energy;
+            if (++stepSamples == samplesPerStep) finishStep();
+        }
+    }
+
+    private void updateTruePeak(){
+        for (int channel = 0; channel < channels; channel++){
+            float[] channelHistory = history[channel];
+            for (int phase = 0; phase < OVERSAMPLING; phase++){
+                float[] taps = OVERSAMPLING_TAPS[phase];
+                float value = 0;
+                int position = historyPosition;
+                for (int tap = 0; tap < TAPS_PER_PHASE; tap++){
+                    // newest sample first
+                    position = position == 0 ? TAPS_PER_PHASE - 1 : position - 1;
+                    value += taps[tap] * channelHistory[position];
+                }
+                if (value < 0) value = -value;
+                if (value > truePeak) truePeak = value;
+            }
+        }
+    }
+
+    private void finishStep(){
+        lastSteps[stepCount % 4] = stepEnergy / samplesPerStep;
+        stepCount++;
+        stepEnergy = 0;
+        stepSamples = 0;
+        if (stepCount < 4) return;
+
+        // mean square of the last 400ms
+        double blockEnergy = (lastSteps[0] + lastSteps[1] + lastSteps[2] + lastSteps[3]) / 4;
+        double loudness = loudnessOf(blockEnergy);
+        if (loudness < ABSOLUTE_GATE) return;
+        int bin = (int) Math.min(HISTOGRAM_BINS - 1, (loudness - ABSOLUTE_GATE) * BINS_PER_LU);
+        binCounts[bin]++;
+        binEnergies[bin] += blockEnergy;
+    }
+
+    // LUFS, negative infinity for silence (or anything shorter than a block)
+    public double getIntegratedLoudness(){
+        return integratedLoudness(List.of(this));
+    }
+
+    // highest sample peak after oversampling, as a fraction of full scale (can be over 1)
+    public float getTruePeak(){
+        return truePeak;
+    }
+
+    // the loudness of all the meters together, like they measured one long song (used for album gain)
+    public static double integratedLoudness(List<LoudnessMeter> meters){
+        long count = 0;
+        double energy = 0;
+        for (LoudnessMeter meter : meters){
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++){
+                count += meter.binCounts[bin];
+                energy += meter.binEnergies[bin];
+            }
+        }
+        if (count == 0) return Double.NEGATIVE_INFINITY;
+
+        // only the blocks at most 10 LU below the loudness of all the blocks count
+        double threshold = loudnessOf(energy / count) + RELATIVE_GATE;
+        int firstBin = (int) Math.max(0, Math.ceil((threshold - ABSOLUTE_GATE) * BINS_PER_LU - 0.5));
+        count = 0;
+        energy = 0;
+        for (LoudnessMeter meter : meters){
+            for (int bin = firstBin; bin < HISTOGRAM_BINS; bin++){
+                count += meter.binCounts[bin];
+                energy += meter.binEnergies[bin];
+            }
+        }
+        if (count == 0) return Double.NEGATIVE_INFINITY;
+        return loudnessOf(energy / count);
+    }
+
+    private static double loudnessOf(double energy){
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    // low pass at the original nyquist frequency for 4x the sample rate, phase p gets taps p, p + 4, p + 8...
+    private static float[][] createOversamplingTaps(){
+        int length = OVERSAMPLING * TAPS_PER_PHASE;
+        float[][] taps = new float[OVERSAMPLING][TAPS_PER_PHASE];
+        double center = (length - 1) / 2.0;
+        for (int i = 0; i < length; i++){
+            double t = (i - center) / OVERSAMPLING;
+            double sinc = t == 0 ? 1 : Math.sin(Math.PI * t) / (Math.PI * t);
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / length);
+            taps[i % OVERSAMPLING][i / OVERSAMPLING] = (float) (sinc * window);
+        }
+        return taps;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//counters and latency histograms of the hot paths (see FlightRecorderEvents for the same things as JFR events)
+//
+//recording never locks or allocates: a counter is a LongAdder and a histogram is a fixed array of atomic bucket
+//counts. the buckets are log-linear like HdrHistogram's (16 per power of two, so any value is off by at most about 6%)
+//which covers nanoseconds up to minutes in a few hundred buckets. the metrics can be polled one by one, or all at once
+//with snapshot(). -Djamp.metricsInterval=<seconds> prints a snapshot to stderr that often
+public class Metrics {
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    static {
+        int interval = Integer.getInteger("jamp.metricsInterval", 0);
+        if (interval > 0){
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        while (true){
+                            Thread.sleep(interval * 1000L);
+                            snapshot().print(System.err);
+                        }
+                    } catch (InterruptedException e){
+                        // done
+                    }
+                }
+            }, "metrics-dump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // the counter with that name, made the first time it's asked for (keep it in a static field on hot paths)
+    public static Counter counter(String name){
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    // the histogram with that name, made the first time it's asked for (keep it in a static field on hot paths)
+    public static Histogram histogram(String name){
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // all the metrics as they are right now
+    public static Snapshot snapshot(){
+        Map<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()){
+            counterValues.put(counter.getKey(), counter.getValue().get());
+        }
+        Map<String, Histogram.Snapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()){
+            histogramValues.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+        return new Snapshot(counterValues, histogramValues);
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment(){
+            value.increment();
+        }
+
+        public void add(long amount){
+            value.add(amount);
+        }
+
+        public long get(){
+            return value.sum();
+        }
+    }
+
+    //distribution of durations in nanoseconds (any positive long works, negative values count as 0)
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        //values from 2^MAX_EXPONENT up all go into the last bucket (2^40ns is about 18 minutes)
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value){
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) currentMax = max.get();
+        }
+
+        // values below 16 get a bucket each, above that every power of two is split into 16 buckets
+        private static int bucketOf(long value){
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // the highest value that goes into the bucket
+        private static long highestValueIn(int bucket){
+            if (bucket < SUB_BUCKETS) return bucket;
+            if (bucket == BUCKETS - 1) return Long.MAX_VALUE;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        public long getCount(){
+            return count.sum();
+        }
+
+        // the counts are read one bucket at a time while recording goes on, so the percentiles can be off by the
+        // few values recorded during the snapshot
+        public Snapshot snapshot(){
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++){
+                counts[bucket] = buckets.get(bucket);
+                total += counts[bucket];
+            }
+            long maxValue = max.get();
+            return new Snapshot(total, total == 0 ? 0 : (double) sum.sum() / total,
+                    percentile(counts, total, 50, maxValue), percentile(counts, total, 90, maxValue),
+                    percentile(counts, total, 99, maxValue), percentile(counts, total, 99.9, maxValue), maxValue);
+        }
+
+        private static long percentile(long[] counts, long total, double percent, long maxValue){
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++){
+                seen += counts[bucket];
+                if (seen >= rank) return Math.min(highestValueIn(bucket), maxValue);
+            }
+            return maxValue;
+        }
+
+        public static class Snapshot {
+            private final long count;
+            private final double mean;
+            private final long p50, p90, p99, p999, max;
+
+            Snapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+                this.count = count;
+                this.mean = mean;
+                this.p50 = p50;
+                this.p90 = p90;
+                this.p99 = p99;
+                this.p999 = p999;
+                this.max = max;
+            }
+
+            public long getCount() {
+                return count;
+            }
+
+            public double getMean() {
+                return mean;
+            }
+
+            public long getP50() {
+                return p50;
+            }
+
+            public long getP90() {
+                return p90;
+            }
+
+            public long getP99() {
+                return p99;
+            }
+
+            public long getP999() {
+                return p999;
+            }
+
+            public long getMax() {
+                return max;
+            }
+        }
+    }
+
+    public static class Snapshot {
+        private final Map<String, Long> counters;
+        private final Map<String, Histogram.Snapshot> histograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, Histogram.Snapshot> histograms) {
+            this.counters = Collections.unmodifiableMap(counters);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            return histograms;
+        }
+
+        // one line per metric, histograms in microseconds
+        public void print(PrintStream out){
+            for (Map.Entry<String, Long> counter : counters.entrySet()){
+                out.println(String.format(Locale.ROOT, "%-28s %d", counter.getKey(), counter.getValue()));
+            }
+            for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()){
+                Histogram.Snapshot histogram = entry.getValue();
+                out.println(String.format(Locale.ROOT,
+                        "%-28s count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                        entry.getKey(), histogram.getCount(), histogram.getMean() / 1e3, histogram.getP50() / 1e3,
+                        histogram.getP90() / 1e3, histogram.getP99() / 1e3, histogram.getP999() / 1e3,
+                        histogram.getMax() / 1e3));
+            }
+        }
+    }
+}
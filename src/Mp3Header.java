@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+//reads what can be learned about an mp3 from the start of the file without scanning every frame
+//(ID3v2 tag size, first frame header and the Xing/Info/VBRI/LAME header if there is one)
+public class Mp3Header {
+
+    //how much of the file after the ID3v2 tag we look at to find the first frame
+    private static final int SEARCH_WINDOW = 64 * 1024;
+
+    private static final int[][] BITRATES = {
+            // MPEG1 layer 1, 2, 3
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG2/2.5 layer 1, 2 and 3
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000},  // MPEG2.5
+            {0, 0, 0},             // reserved
+            {22050, 24000, 16000}, // MPEG2
+            {44100, 48000, 32000}, // MPEG1
+    };
+
+    private long firstFrameOffset;
+    private long audioDataStart;
+    private long audioDataEnd;
+    private int firstFrameHeader;
+    private int sampleRate;
+    private int samplesPerFrame;
+    private int channels;
+    private int frameCount;
+    private boolean vbr;
+    private boolean hasInfoFrame;
+    private boolean frameCountExact;
+    private int encoderDelay;
+    private int encoderPadding;
+
+    private Mp3Header() {
+    }
+
+    //where the bytes of the file come from
+    private interface ByteReader {
+        // copies up to length bytes from the position into the array, returns how many were copied or -1 at the end
+        int read(long position, byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    // reads the few parts of the file it needs with positional reads, so that parsing the header (e.g. for every file
+    // of a library scan) doesn't map the file
+    public static Mp3Header read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return read(channel.size(), (position, bytes, offset, length) -> {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()){
+                    if (channel.read(buffer, position + buffer.position() - offset) < 0) break;
+                }
+                int copied = buffer.position() - offset;
+                return copied == 0 && length > 0 ? -1 : copied;
+            });
+        }
+    }
+
+    public static Mp3Header read(Mp3Source source) throws IOException {
+        return read(source.size(), source::read);
+    }
+
+    private static Mp3Header read(long fileLength, ByteReader source) throws IOException {
+        Mp3Header mp3Header = new Mp3Header();
+
+        // skip over the ID3v2 tag
+        long tagEnd = 0;
+        byte[] id3 = new byte[10];
+        if (fileLength >= 10){
+            source.read(0, id3, 0, id3.length);
+            if (id3[0] == 'I' && id3[1] == 'D' && id3[2] == '3'){
+                int tagSize = (id3[6] & 0x7F) << 21 | (id3[7] & 0x7F) << 14 | (id3[8] & 0x7F) << 7 | (id3[9] & 0x7F);
+                boolean hasFooter = (id3[5] & 0x10) != 0;
+                tagEnd = 10 + tagSize + (hasFooter ? 10 : 0);
+            }
+        }
+
+        // ID3v1 tag at the end
+        mp3Header.audioDataEnd = fileLength;
+        if (fileLength >= 128){
+            byte[] tag = new byte[3];
+            source.read(fileLength - 128, tag, 0, tag.length);
+            if (tag[0] == 'T' && tag[1] == 'A' && tag[2] == 'G') mp3Header.audioDataEnd -= 128;
+        }
+
+        byte[] window = new byte[(int) Math.max(0, Math.min(SEARCH_WINDOW, mp3Header.audioDataEnd - tagEnd))];
+        source.read(tagEnd, window, 0, window.length);
+
+        int frameStart = findFirstFrame(window);
+        if (frameStart < 0) throw new IOException("No mp3 frames found");
+
+        mp3Header.parse(window, frameStart, tagEnd);
+        return mp3Header;
+    }
+
+    // looks for a frame header that is followed by another valid frame header
+    private static int findFirstFrame(byte[] window){
+        for (int i = 0; i + 4 <= window.length; i++){
+            if ((window[i] & 0xFF) != 0xFF) continue;
+
+            int header = readInt(window, i);
+            if (!isValidHeader(header)) continue;
+
+            int next = i + frameLength(header);
+            if (next + 4 > window.length){
+                // can't check the next frame, trust it if the window ended
+                return i;
+            }
+            int nextHeader = readInt(window, next);
+            if (isValidHeader(nextHeader) && (nextHeader & 0xFFFE0C00) == (header & 0xFFFE0C00)) return i;
+        }
+        return -1;
+    }
+
+    private void parse(byte[] window, int frameStart, long windowOffset){
+        firstFrameOffset = windowOffset + frameStart;
+        firstFrameHeader = readInt(window, frameStart);
+        sampleRate = sampleRate(firstFrameHeader);
+        samplesPerFrame = samplesPerFrame(firstFrameHeader);
+        channels = ((firstFrameHeader >> 6) & 3) == 3 ? 1 : 2;
+        audioDataStart = firstFrameOffset;
+
+        int version = (firstFrameHeader >> 19) & 3;
+        int sideInfoSize = version == 3 ? (channels == 1 ? 17 : 32) : (channels == 1 ? 9 : 17);
+        int crcSize = (firstFrameHeader & 0x10000) == 0 ? 2 : 0;
+        int xingOffset = frameStart + 4 + crcSize + sideInfoSize;
+        int vbriOffset = frameStart + 4 + 32;
+
+        if ((matches(window, xingOffset, "Xing") || matches(window, xingOffset, "Info")) && xingOffset + 12 <= window.length){
+            hasInfoFrame = true;
+            vbr = matches(window, xingOffset, "Xing");
+            int flags = readInt(window, xingOffset + 4);
+            int position = xingOffset + 8;
+            if ((flags & 1) != 0){
+                frameCount = readInt(window, position);
+                position += 4;
+            }
+            if ((flags & 2) != 0) position += 4;
+            if ((flags & 4) != 0) position += 100;
+            if ((flags & 8) != 0) position += 4;
+
+            // LAME tag holds the encoder delay and padding (used for gapless playback)
+            if (position + 24 <= window.length && (matches(window, position, "LAME") || matches(window, position, "Lavf")
+                    || matches(window, position, "Lavc"))){
+                int delayAndPadding = (window[position + 21] & 0xFF) << 16 | (window[position + 22] & 0xFF) << 8
+                        | (window[position + 23] & 0xFF);
+                encoderDelay = delayAndPadding >>> 12;
+                encoderPadding = delayAndPadding & 0xFFF;
+            }
+        } else if (matches(window, vbriOffset, "VBRI") && vbriOffset + 18 <= window.length){
+            hasInfoFrame = true;
+            vbr = true;
+            encoderDelay = (window[vbriOffset + 6] & 0xFF) << 8 | (window[vbriOffset + 7] & 0xFF);
+            frameCount = readInt(window, vbriOffset + 14);
+        }
+
+        // the info frame decodes to silence so the audio starts at the frame after it
+        if (hasInfoFrame) audioDataStart = firstFrameOffset + frameLength(firstFrameHeader);
+
+        frameCountExact = frameCount > 0;
+        if (!frameCountExact){
+            // no frame count in the file so estimate it from the bitrate
+            double bytesPerFrame = (double) samplesPerFrame / 8 * bitrate(firstFrameHeader) * 1000 / sampleRate;
+            frameCount = (int) Math.round((audioDataEnd - audioDataStart) / bytesPerFrame);
+        }
+    }
+
+    private static boolean matches(byte[] window, int offset, String id){
+        if (offset < 0 || offset + id.length() > window.length) return false;
+        for (int i = 0; i < id.length(); i++){
+            if (window[offset + i] != id.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static int readInt(byte[] bytes, int offset){
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    // checks the sync word and that none of the fields hold reserved values
+    public static boolean isValidHeader(int header){
+        if ((header & 0xFFE00000) != 0xFFE00000) return false;
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        int bitrateIndex = (header >> 12) & 15;
+        int sampleRateIndex = (header >> 10) & 3;
+        return version != 1 && layer != 0 && bitrateIndex != 0 && bitrateIndex != 15 && sampleRateIndex != 3;
+    }
+
+    // bitrate in kbps
+    public static int bitrate(int header){
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        int bitrateIndex = (header >> 12) & 15;
+        int table;
+        if (version == 3) table = 3 - layer;
+        else table = layer == 3 ? 3 : 4;
+        return BITRATES[table][bitrateIndex];
+    }
+
+    public static int sampleRate(int header){
+        return SAMPLE_RATES[(header >> 19) & 3][(header >> 10) & 3];
+    }
+
+    public static int samplesPerFrame(int header){
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        if (layer == 3) return 384;
+        if (layer == 2) return 1152;
+        return version == 3 ? 1152 : 576;
+    }
+
+    // size of the whole frame in bytes (including the header)
+    public static int frameLength(int header){
+        int layer = (header >> 17) & 3;
+        int padding = (header >> 9) & 1;
+        if (layer == 3){
+            return (12 * bitrate(header) * 1000 / sampleRate(header) + padding) * 4;
+        }
+        return samplesPerFrame(header) / 8 * bitrate(header) * 1000 / sampleRate(header) + padding;
+    }
+
+    // getters
+    public long getFirstFrameOffset() {
+        return firstFrameOffset;
+    }
+
+    // position of the first frame that holds audio (after the Xing/Info frame if there is one)
+    public long getAudioDataStart() {
+        return audioDataStart;
+    }
+
+    // position right after the last frame (before the ID3v1 tag if there is one)
+    public long getAudioDataEnd() {
+        return audioDataEnd;
+    }
+
+    public int getFirstFrameHeader() {
+        return firstFrameHeader;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    // true if the frame count came from a Xing/Info or VBRI header instead of being estimated
+    public boolean isFrameCountExact() {
+        return frameCountExact;
+    }
+
+    public boolean isVbr() {
+        return vbr;
+    }
+
+    public boolean hasInfoFrame() {
+        return hasInfoFrame;
+    }
+
+    public int getEncoderDelay() {
+        return encoderDelay;
+    }
+
+    public int getEncoderPadding() {
+        return encoderPadding;
+    }
+
+    public long getLengthInMilliseconds() {
+        return (long) frameCount * samplesPerFrame * 1000 / sampleRate;
+    }
+}
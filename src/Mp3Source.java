@@ -0,0 +1,116 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+//an mp3 file mapped into memory, shared by everything that reads the song (header parsing, seek index and playback)
+//
+//reads are served straight from the page cache so there is no extra buffering and no read syscall per chunk,
+//and any number of streams can read from different positions at the same time (e.g. a seek while the old
+//decoder is still open). files bigger than 1GB get mapped in several segments
+public class Mp3Source {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private Mp3Source(MappedByteBuffer[] segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    public static Mp3Source open(File file) throws IOException {
+        // the mapping stays valid after the channel is closed (it's released once the source is garbage collected)
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++){
+                long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return new Mp3Source(segments, size);
+        }
+    }
+
+    // copies up to length bytes from the position into the array, returns how many were copied or -1 at the end of the file
+    public int read(long position, byte[] bytes, int offset, int length){
+        if (position >= size) return -1;
+        length = (int) Math.min(length, size - position);
+
+        int copied = 0;
+        while (copied < length){
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentOffset = (int) (position % SEGMENT_SIZE);
+            int count = Math.min(length - copied, segment.limit() - segmentOffset);
+
+            // absolute get, so the buffer's position is never touched and readers don't get in each other's way
+            segment.get(segmentOffset, bytes, offset + copied, count);
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+
+    // -1 at the end of the file
+    public int read(long position){
+        if (position < 0 || position >= size) return -1;
+        return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE)) & 0xFF;
+    }
+
+    // big endian int at the position (used to check frame headers)
+    public int readInt(long position){
+        int segmentOffset = (int) (position % SEGMENT_SIZE);
+        MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+        if (segmentOffset + 4 <= segment.limit()) return segment.getInt(segmentOffset);
+
+        // the int is split between two segments
+        return read(position) << 24 | read(position + 1) << 16 | read(position + 2) << 8 | read(position + 3);
+    }
+
+    // a stream over the file starting at the position, each stream keeps its own position
+    public InputStream openStream(long position){
+        return new MappedInputStream(position);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private class MappedInputStream extends InputStream {
+        private long position;
+
+        MappedInputStream(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() {
+            int value = Mp3Source.this.read(position);
+            if (value >= 0) position++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) return 0;
+            int count = Mp3Source.this.read(position, bytes, offset, length);
+            if (count > 0) position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = Math.max(0, Math.min(count, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position));
+        }
+    }
+}
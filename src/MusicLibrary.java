@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+//every song found in the library folders (see LibraryScanner), kept on disk so the library doesn't have to be scanned
+//again on every start. songs are stored as metadata cache entries so they carry the file size and last modified time
+//that tell if a file needs to be parsed again
+//
+//file layout: [magic int][version int][root count int] followed by the roots as [path length int][path bytes],
+//             [song count int] followed by the songs as [record length int][record bytes] (same as the metadata cache)
+public class MusicLibrary {
+
+    private static final int MAGIC = 0x4A4D4C49; // "JMLI"
+    private static final int VERSION = 1;
+
+    private static MusicLibrary instance;
+
+    public static synchronized MusicLibrary getInstance(){
+        if (instance == null){
+            instance = new MusicLibrary(SongMetadataCache.getCacheDirectory().resolve("library.bin"));
+        }
+        return instance;
+    }
+
+    private final Path libraryFile;
+
+    //folders that make up the library
+    private final List<String> roots = new CopyOnWriteArrayList<>();
+
+    //songs keyed by file path
+    private final Map<String, SongMetadataCache.Entry> songs = new ConcurrentHashMap<>();
+
+    //goes up with every change so that things built from the library (like the search index) know they're outdated
+    private final AtomicLong version = new AtomicLong();
+
+    private SearchIndex searchIndex;
+    private long searchIndexVersion = -1;
+
+    public MusicLibrary(Path libraryFile) {
+        this.libraryFile = libraryFile;
+        try{
+            load();
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e){
+            // a broken library file just means the folders have to be scanned again
+            e.printStackTrace();
+            roots.clear();
+            songs.clear();
+        }
+    }
+
+    public void addRoot(Path root){
+        String path = root.toAbsolutePath().normalize().toString();
+        if (!roots.contains(path)) roots.add(path);
+    }
+
+    public List<String> getRoots() {
+        return roots;
+    }
+
+    public void put(SongMetadataCache.Entry song){
+        songs.put(song.getFilePath(), song);
+        version.incrementAndGet();
+    }
+
+    public void remove(String filePath){
+        if (songs.remove(filePath) != null) version.incrementAndGet();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    // builds the search index again if the library changed since it was last built (can take a while, call it
+    // off the EDT)
+    public synchronized SearchIndex getSearchIndex(){
+        long currentVersion = version.get();
+        if (searchIndex == null || searchIndexVersion != currentVersion){
+            // sorted by path so that equally good matches show up folder by folder
+            List<SongMetadataCache.Entry> sortedSongs = getSongs();
+            sortedSongs.sort(Comparator.comparing(SongMetadataCache.Entry::getFilePath));
+            searchIndex = SearchIndex.build(sortedSongs);
+            searchIndexVersion = currentVersion;
+        }
+        return searchIndex;
+    }
+
+    // null if the file isn't in the library
+    public SongMetadataCache.Entry get(String filePath){
+        return songs.get(filePath);
+    }
+
+    // snapshot of every song in the library (in no particular order)
+    public List<SongMetadataCache.Entry> getSongs(){
+        return new ArrayList<>(songs.values());
+    }
+
+    public int size(){
+        return songs.size();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(libraryFile)) return;
+
+        try (FileChannel channel = FileChannel.open(libraryFile, StandardOpenOption.READ)){
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return;
+
+            int rootCount = buffer.getInt();
+            for (int i = 0; i < rootCount; i++){
+                byte[] path = new byte[buffer.getInt()];
+                buffer.get(path);
+                roots.add(new String(path, StandardCharsets.UTF_8));
+            }
+
+            int songCount = buffer.getInt();
+            for (int i = 0; i < songCount; i++){
+                int recordLength = buffer.getInt();
+                int recordEnd = buffer.position() + recordLength;
+                SongMetadataCache.Entry song = SongMetadataCache.decode(buffer.slice(buffer.position(), recordLength));
+                songs.put(song.getFilePath(), song);
+                buffer.position(recordEnd);
+            }
+        }
+    }
+
+    // writes the whole library to a temp file and swaps it in so that a crash never leaves half a library behind
+    public synchronized void save() throws IOException {
+        Files.createDirectories(libraryFile.getParent());
+        Path tempFile = libraryFile.resolveSibling(libraryFile.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            List<String> rootsToSave = new ArrayList<>(roots);
+            List<SongMetadataCache.Entry> songsToSave = getSongs();
+
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(MAGIC).putInt(VERSION).putInt(rootsToSave.size());
+            header.flip();
+            writeFully(channel, header);
+            for (String root : rootsToSave){
+                byte[] path = root.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = ByteBuffer.allocate(4 + path.length);
+                record.putInt(path.length).put(path);
+                record.flip();
+                writeFully(channel, record);
+            }
+
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(songsToSave.size());
+            count.flip();
+            writeFully(channel, count);
+
+            // batch the records into bigger writes, a library can have 100k+ songs
+            ByteBuffer batch = ByteBuffer.allocate(256 * 1024);
+            for (SongMetadataCache.Entry song : songsToSave){
+                ByteBuffer record = SongMetadataCache.encode(song);
+                if (record.remaining() > batch.remaining()){
+                    batch.flip();
+                    writeFully(channel, batch);
+                    batch.clear();
+                }
+                if (record.remaining() > batch.remaining()){
+                    writeFully(channel, record);
+                } else{
+                    batch.put(record);
+                }
+            }
+            batch.flip();
+            writeFully(channel, batch);
+        }
+        Files.move(tempFile, libraryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
@@ -1,70 +1,131 @@
-import javazoom.jl.player.advanced.AdvancedPlayer;
-import javazoom.jl.player.advanced.PlaybackEvent;
-import javazoom.jl.player.advanced.PlaybackListener;
-
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//keeps track of what is playing (the current song, the playlist and what comes next) and drives the PlaybackEngine
+//
+//it doesn't know about the gui, whoever shows the player (the gui or the command line, see App) gets told about
+//changes through a Listener. all the player's state lives on one control thread (the EDT for the gui): the public
+//methods have to be called on it and the engine's and the playlist loader's callbacks get moved over to it
+public class MusicPlayer implements PlaybackEngine.Listener {
+
+    //what the player tells whoever shows it, called from the control thread (and positionChanged() from the position
+    //updater thread), wrap it in a PlayerEventDispatcher to get the events on another thread
+    public interface Listener {
+        // a different song is now the current one
+        void songChanged(Song song);
+
+        // true when a song starts playing, false once there is nothing left to play
+        void playingChanged(boolean playing);
+
+        // how far into the current song playback is
+        void positionChanged(int frame);
+
+        // percent is between 0 and 100, -1 once the playlist is loaded (or the load got cancelled)
+        void playlistLoadProgressChanged(int percent);
+    }
 
-public class MusicPlayer extends PlaybackListener {
+    //how often the position gets updated (about 30 times per second)
+    private static final int POSITION_UPDATE_INTERVAL_MS = 33;
 
-    //used to update isPaused more synchronously
-    private static final Object playSignal = new Object();
+    private final Listener listener;
 
-    //need reference so that we can update gui in this class
-    private MusicPlayerGUI musicPlayerGUI;
+    //runs tasks on the thread the player's state belongs to
+    private final Executor controlThread;
 
     //need a way to store song details, so im creating a song class
-    private Song currentSong;
+    private volatile Song currentSong;
     public Song getCurrentSong(){
         return currentSong;
     }
 
-    private ArrayList<Song> playlist;
+    //the playlist only holds track ids, a Song only gets made for the current and the next track
+    private Playlist playlist;
+
+    //the track after the current one, handed to the engine so it can follow without a gap
+    private Song nextSong;
+    private int nextSongIndex = -1;
+
+    //loads the playlist songs in the background
+    private PlaylistLoader playlistLoader;
+
+    //flag to indicate that the song finished before the next playlist song was loaded
+    private boolean waitingForNextSong;
 
     //need to keep track of the index of the playlist
     private int currentPlaylistIndex;
 
-    //use JLayer lib to create an AdvancedPlayer obj which will handle playing the music
-    private AdvancedPlayer advancedPlayer;
+    //shuffle and repeat, works out which playlist index comes before and after the current one
+    private final PlayOrder playOrder = new PlayOrder();
+
+    //decodes and plays the current song (on the engine thread)
+    private final PlaybackEngine playbackEngine;
+
+    //reports the position while a song is playing
+    private final ScheduledExecutorService positionUpdater;
+    private volatile boolean updatingPosition;
 
     //pause boolean flag to indicate whether the player has been paused
-    private boolean isPaused;
+    private volatile boolean isPaused;
 
 
     //flag to indicate if song is finished playing
-    private boolean songFinished;
+    private volatile boolean songFinished;
 
-    //flag to indicate if pressed next or prev buttons
-    private boolean pressedNext, pressedPrev;
 
-
-    //stores the last frame (time) of the song (used for pausing and resuming)
+    //stores the frame (time) of the song to play from (used for seeking with the slider)
     private int currentFrame;
+
+    //flag to indicate that the slider moved the current frame while paused
+    private boolean frameChanged;
     public void setCurrentFrame(int frame){
         currentFrame = frame;
+        frameChanged = true;
     }
 
-    //track how many ms has passed since playing the song (used for updating the slider)
-    private int currentTimeInMilli;
-    public void setCurrentTimeInMilli(int timeInMilli){
-        currentTimeInMilli = timeInMilli;
-    }
+    // how many ms into the song we are, based on what the audio device has actually played
     public int getCurrentTimeInMilli(){
-        return currentTimeInMilli;
+        return playbackEngine.getPositionInMilli();
     }
 
     //constructor
-    public MusicPlayer(MusicPlayerGUI musicPlayerGUI) {
-        this.musicPlayerGUI = musicPlayerGUI;
+    public MusicPlayer(Listener listener, Executor controlThread) {
+        this.listener = listener;
+        this.controlThread = controlThread;
+        playbackEngine = new PlaybackEngine(this);
+
+        // one small thread ticks for the whole life of the player, it only sends anything while a song is playing
+        positionUpdater = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "position-updater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        positionUpdater.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                updatePosition();
+            }
+        }, POSITION_UPDATE_INTERVAL_MS, POSITION_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     public void loadSong(Song song){
+        cancelPlaylistLoad();
         currentSong = song;
         playlist = null;
+        nextSong = null;
 
         //  stop the song if possible
-        if (!songFinished)
-            stopSong();
+        stopSong();
 
         //play the current song if not null
         if (currentSong != null){
@@ -75,9 +136,8 @@ public class MusicPlayer extends PlaybackListener {
             currentPlaylistIndex = 0;
 
             //update gui
-            musicPlayerGUI.enablePauseDisablePlay();
-            musicPlayerGUI.updatePlaybackSlider(currentSong);
-            musicPlayerGUI.updateSongTitleAndArtist(currentSong);
+            listener.songChanged(currentSong);
+            listener.playingChanged(true);
 
 
             playCurrentSong();
@@ -85,102 +145,181 @@ public class MusicPlayer extends PlaybackListener {
     }
 
     public void loadPlaylist(File playlistFile){
-        playlist = new ArrayList<>();
-
-        // store the paths from the text file into the playlist array
-        try{
-            FileReader fileReader = new FileReader(playlistFile);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-
-            // read each line from the txt file and store the text into the songPath variable
-            String songPath;
-            while((songPath = bufferedReader.readLine()) != null){
-                // create song object based on song path
-                Song song = new Song(songPath);
+        // stop loading any playlist that is still loading in the background
+        cancelPlaylistLoad();
+
+        playlist = new Playlist(LibraryTable.getInstance());
+        nextSong = null;
+        currentPlaylistIndex = 0;
+        if (playOrder.isShuffle()) playOrder.reseed(System.nanoTime());
+        waitingForNextSong = false;
+
+        // parse the songs in the background, the first song will start playing as soon as it is ready
+        playlistLoader = new PlaylistLoader(playlistFile, this);
+        playlistLoader.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())){
+                    listener.playlistLoadProgressChanged((Integer) evt.getNewValue());
+                }
+            }
+        });
+        playlistLoader.execute();
+    }
 
-                // add to the playlist array
-                playlist.add(song);
+    // gets called by the playlist loader whenever more songs are ready (in playlist order)
+    public void addToPlaylist(final PlaylistLoader loader, List<SongMetadataCache.Entry> songs){
+        final List<SongMetadataCache.Entry> loadedSongs = new ArrayList<>(songs);
+        controlThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                addLoadedSongs(loader, loadedSongs);
             }
+        });
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private void addLoadedSongs(PlaylistLoader loader, List<SongMetadataCache.Entry> songs){
+        // ignore songs from a playlist that has been replaced
+        if (loader != playlistLoader || playlist == null) return;
 
-        if (playlist.size() > 0){
-            // reset playback slider
-            musicPlayerGUI.setPlaybackSliderValue(0);
-            currentTimeInMilli = 0;
+        boolean firstSongs = playlist.isEmpty();
+        boolean hadNoNextSong = nextSong == null;
+        LibraryTable libraryTable = playlist.getLibraryTable();
+        for (SongMetadataCache.Entry song : songs) playlist.add(libraryTable.add(song));
 
+        if (firstSongs && playlist.size() > 0){
             // update current song to the first song in the playlist
-            currentSong = playlist.get(0);
+            currentSong = playlist.materialize(0);
 
             // start from the beginning frame
             currentFrame = 0;
 
             //update gui
-            musicPlayerGUI.enablePauseDisablePlay();
-            musicPlayerGUI.updatePlaybackSlider(currentSong);
-            musicPlayerGUI.updateSongTitleAndArtist(currentSong);
+            listener.songChanged(currentSong);
+            listener.playingChanged(true);
 
             //start song
             playCurrentSong();
+        } else if (waitingForNextSong){
+            // the previous song finished before this one was loaded
+            int index = playOrder.afterFinished(currentPlaylistIndex, playlist.size(), false);
+            if (index >= 0){
+                waitingForNextSong = false;
+                playSongAt(index);
+            }
+        } else if (hadNoNextSong){
+            // the song that's playing might finally have a song after it
+            updateNextSong();
         }
     }
 
+    // gets called by the playlist loader once it's done
+    public void playlistLoadFinished(final PlaylistLoader loader){
+        controlThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                finishPlaylistLoad(loader);
+            }
+        });
+    }
 
-    public void pauseSong(){
-        if (advancedPlayer != null) {
-            // update isPaused flag
-            isPaused = true;
+    private void finishPlaylistLoad(PlaylistLoader loader){
+        if (loader != playlistLoader) return;
+        playlistLoader = null;
+        listener.playlistLoadProgressChanged(-1);
+
+        if (playlist != null && playlist.isEmpty()){
+            // none of the songs could be read
+            listener.playingChanged(false);
+        } else if (waitingForNextSong){
+            // nothing else is coming, start over for repeat all or else the playlist is over
+            waitingForNextSong = false;
+            int index = playOrder.afterFinished(currentPlaylistIndex, playlist.size(), true);
+            if (index >= 0){
+                playSongAt(index);
+            } else{
+                listener.playingChanged(false);
+            }
+        } else if (nextSong == null){
+            // now that the whole playlist is there repeat all can wrap around
+            updateNextSong();
+        }
+    }
 
-            //then stop the player
-            stopSong();
+    public PlayOrder.RepeatMode getRepeatMode(){
+        return playOrder.getRepeatMode();
+    }
 
-        }
+    public void setRepeatMode(PlayOrder.RepeatMode repeatMode){
+        playOrder.setRepeatMode(repeatMode);
+        if (currentSong != null) updateNextSong();
     }
 
-    public void stopSong(){
-        if (advancedPlayer != null) {
-            advancedPlayer.stop();
-            advancedPlayer.close();
-            advancedPlayer = null;
-        }
+    public int getCrossfadeMillis(){
+        return playbackEngine.getCrossfadeMillis();
+    }
 
+    public void setCrossfadeMillis(int crossfadeMillis){
+        playbackEngine.setCrossfadeMillis(crossfadeMillis);
     }
 
-    public void nextSong(){
-        // no need to goto next song if no playlist
-        if (playlist == null) return;
+    public ReplayGain.Mode getReplayGainMode(){
+        return playbackEngine.getReplayGainMode();
+    }
 
-        // dont do anything if at end of playlist
-        if (currentPlaylistIndex + 1 > playlist.size() - 1) return;
+    public void setReplayGainMode(ReplayGain.Mode replayGainMode){
+        playbackEngine.setReplayGainMode(replayGainMode);
+    }
 
-        //update flag
-        pressedNext = true;
+    public void setSpectrumAnalyzer(SpectrumAnalyzer spectrumAnalyzer){
+        playbackEngine.setSpectrumAnalyzer(spectrumAnalyzer);
+    }
 
-        //  stop the song if possible
-        if (!songFinished)
-            stopSong();
+    public boolean isShuffle(){
+        return playOrder.isShuffle();
+    }
 
-        // increase current playlist index
-        currentPlaylistIndex++;
+    public void setShuffle(boolean shuffle){
+        // the current song stays where it is, only what comes after (and before) it changes
+        playOrder.setShuffle(shuffle);
+        if (currentSong != null) updateNextSong();
+    }
 
-        // update current song
-        currentSong = playlist.get(currentPlaylistIndex);
+    private void cancelPlaylistLoad(){
+        if (playlistLoader != null){
+            playlistLoader.cancel(true);
+            playlistLoader = null;
+            listener.playlistLoadProgressChanged(-1);
+        }
+    }
 
-        //reset frame
-        currentFrame = 0;
 
-        //reset current time in millis
-        currentTimeInMilli = 0;
+    public void pauseSong(){
+        if (!isPaused && currentSong != null && !songFinished) {
+            // update isPaused flag
+            isPaused = true;
+            updatingPosition = false;
 
-        //update gui
-        musicPlayerGUI.enablePauseDisablePlay();
-        musicPlayerGUI.updatePlaybackSlider(currentSong);
-        musicPlayerGUI.updateSongTitleAndArtist(currentSong);
+            // park the decoder, everything stays open so that resuming is instant
+            playbackEngine.pause();
+            frameChanged = false;
+        }
+    }
 
-        //play song
-        playCurrentSong();
+    public void stopSong(){
+        playbackEngine.stop();
+        isPaused = false;
+    }
+
+    public void nextSong(){
+        // no need to goto next song if no playlist
+        if (playlist == null) return;
+
+        // dont do anything if at end of playlist
+        int index = playOrder.next(currentPlaylistIndex, playlist.size(), playlistLoader == null);
+        if (index < 0) return;
+
+        playSongAt(index);
     }
 
     public void prevSong(){
@@ -188,160 +327,164 @@ public class MusicPlayer extends PlaybackListener {
         if (playlist == null) return;
 
         // dont do anything if at start of playlist
-        if (currentPlaylistIndex - 1 < 0) return;
+        int index = playOrder.previous(currentPlaylistIndex, playlist.size(), playlistLoader == null);
+        if (index < 0) return;
 
-        //update flag
-        pressedPrev = true;
+        playSongAt(index);
+    }
 
+    private void playSongAt(int index){
         //  stop the song if possible
-        if (!songFinished)
-            stopSong();
+        stopSong();
 
-        // decrement current playlist index
-        currentPlaylistIndex--;
+        // update current playlist index
+        currentPlaylistIndex = index;
 
         // update current song
-        currentSong = playlist.get(currentPlaylistIndex);
+        currentSong = songAfter(index);
 
         //reset frame
         currentFrame = 0;
 
-        //reset current time in millis
-        currentTimeInMilli = 0;
-
         //update gui
-        musicPlayerGUI.enablePauseDisablePlay();
-        musicPlayerGUI.updatePlaybackSlider(currentSong);
-        musicPlayerGUI.updateSongTitleAndArtist(currentSong);
+        listener.songChanged(currentSong);
+        listener.playingChanged(true);
 
         //play song
         playCurrentSong();
     }
 
     public void playCurrentSong(){
-        try{
-            if (currentSong != null){
-                //read mp3 audio data
-                FileInputStream fileInputStream = new FileInputStream(currentSong.getFilePath());
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
+        if (currentSong != null){
+            if (frameChanged){
+                // jump to the frame the slider was dropped at (the engine reuses the open song if it can)
+                playbackEngine.seek(currentSong, currentFrame);
+                playbackEngine.resume();
+            } else if (isPaused){
+                // pick up exactly where we paused
+                playbackEngine.resume();
+            } else{
+                playbackEngine.play(currentSong, 0);
+            }
+            isPaused = false;
+            frameChanged = false;
+            songFinished = false;
 
-                //create a new advanced player
-                advancedPlayer = new AdvancedPlayer(bufferedInputStream);
-                advancedPlayer.setPlayBackListener(this);
+            // start updating the position
+            updatingPosition = true;
 
-                // start music
-                startMusicThread();
+            // let the engine get the next song ready so it can follow without a gap
+            updateNextSong();
+        }
+    }
 
-                // start playback slider thread
-                startPlaybackSliderThread();
+    // tells the engine which song comes after the current one
+    private void updateNextSong(){
+        if (playlist != null){
+            int index = playOrder.afterFinished(currentPlaylistIndex, playlist.size(), playlistLoader == null);
+            if (index < 0){
+                nextSong = null;
+            } else{
+                nextSong = songAfter(index);
             }
-        } catch (Exception e){
-            e.printStackTrace();
+            nextSongIndex = index;
+        } else if (currentSong != null && playOrder.getRepeatMode() != PlayOrder.RepeatMode.OFF){
+            // a single song repeats for either repeat mode
+            if (nextSong == null || nextSong == currentSong) nextSong = new Song(currentSong.getFilePath(), true);
+            nextSongIndex = 0;
+        } else{
+            nextSong = null;
         }
+        playbackEngine.setNextSong(nextSong);
     }
 
-    //thread that will handle playing music
-    private void startMusicThread(){
-        new Thread(new Runnable() {
-            public void run() {
-                try{
-                    if (isPaused){
-                        synchronized (playSignal){
-                            // update flag
-                            isPaused = false;
-
-                            //notify the other thread to continue (makes sure that isPaused is updated to false)
-                            playSignal.notify();
-                        }
-                        //resume music from last frame
-                        advancedPlayer.play(currentFrame, Integer.MAX_VALUE);
-                    } else{
-                        //play music from start
-                        advancedPlayer.play();
-                    }
-                }catch(Exception e){
-                    e.printStackTrace();
-                }
-            }
-        }).start();
+    // reuses the next song if that's the one we want, so the engine and the player agree on which Song is playing
+    private Song songAt(int index){
+        if (nextSong != null && nextSongIndex == index) return nextSong;
+        return playlist.materialize(index);
+    }
+
+    // same as songAt() but never the song that is playing, playing a track again needs a Song of its own so the engine
+    // can tell the two apart
+    private Song songAfter(int index){
+        Song song = songAt(index);
+        return song == currentSong ? playlist.materialize(index) : song;
+    }
+
+    // gets called by the position updater thread
+    private void updatePosition(){
+        // the position stays where it is while paused or in between songs
+        Song song = currentSong;
+        if (!updatingPosition || song == null || isPaused || songFinished) return;
 
+        //calculate into frame value
+        int calculatedFrame = (int) ((double) getCurrentTimeInMilli() * song.getFrameRatePerMilliseconds());
+
+        //update gui
+        listener.positionChanged(calculatedFrame);
     }
 
-    //create thread that will handle updating the slider
-    private void startPlaybackSliderThread(){
-        new Thread(new Runnable() {
+    @Override
+    public void playbackFinished(final Song song) {
+        //this method gets called by the playback engine when the song plays to the end
+        // move on to the next song on the control thread since that is where the playlist gets updated
+        controlThread.execute(new Runnable() {
             @Override
             public void run() {
-                if (isPaused){
-                    try{
-                        // wait till it gets notified by other thread to continue
-                        // makes sure that isPaused boolean flag updates to false before continuing
-                        synchronized (playSignal){
-                            playSignal.wait();
-                        }
-                    } catch (Exception e){
-                        e.printStackTrace();
-                    }
-                }
-                while(!isPaused && !songFinished && !pressedNext && !pressedPrev){
-                    try{
-                        //increment current time milli
-                        currentTimeInMilli++;
+                // the user already moved on to another song before this event got here
+                if (song != currentSong) return;
 
-                        //calculate into frame value
-                        int calculatedFrame = (int) ((double) currentTimeInMilli *  2.08 * currentSong.getFrameRatePerMilliseconds());
+                // when song ends
+                songFinished = true;
 
+                if (playlist == null){
+                    //update gui
+                    listener.playingChanged(false);
+                }else{
+                    int index = playOrder.afterFinished(currentPlaylistIndex, playlist.size(), playlistLoader == null);
+                    if (index >= 0){
+                        // goto the next song in the playlist
+                        playSongAt(index);
+                    } else if (playlistLoader != null){
+                        // the next song is still being loaded, play it once it's ready
+                        waitingForNextSong = true;
+                    } else{
+                        // last song in playlist
                         //update gui
-                        musicPlayerGUI.setPlaybackSliderValue(calculatedFrame);
-
-                        //mimic 1 ms using Thread.sleep
-                        Thread.sleep(1);
-                    } catch (Exception e){
-                        e.printStackTrace();
+                        listener.playingChanged(false);
                     }
                 }
             }
-        }).start();
+        });
     }
 
     @Override
-    public void playbackFinished(PlaybackEvent evt) {
-        //this method gets called when the song finishes or if player gets closed
-        System.out.println("Playback finished");
-        System.out.println("Stopped at: " + evt.getFrame());
-        if (isPaused){
-            currentFrame += (int)  ((double)evt.getFrame() * currentSong.getFrameRatePerMilliseconds());
-        } else{
+    public void playbackAdvanced(final Song song) {
+        // the engine went straight on to the next song without stopping, so only the gui has to catch up
+        controlThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (song != nextSong) return;
+
+                // move on to the playlist index the next song was picked for
+                if (playlist != null) currentPlaylistIndex = nextSongIndex;
 
-            // don't need to execute rest of code if next or prev buttons are pressed
-            if(pressedNext || pressedPrev) return;
+                // update current song
+                currentSong = song;
+                currentFrame = 0;
 
-            // when song ends
-            songFinished = true;
-            if (playlist == null){
                 //update gui
-                musicPlayerGUI.enablePlayDisablePause();
-            }else{
-                // last song in playlist
-                if(currentPlaylistIndex == playlist.size() - 1){
-                    //update gui
-                    musicPlayerGUI.enablePlayDisablePause();
-                }else{
-                    // goto the next song in the playlist
-                    nextSong();
-                }
-            }
+                listener.songChanged(currentSong);
+                listener.playingChanged(true);
 
-        }
+                updateNextSong();
+            }
+        });
     }
 
     @Override
-    public void playbackStarted(PlaybackEvent evt) {
+    public void playbackStarted() {
         // this method gets called in the beginning of the song
-        System.out.println("Playback started");
         songFinished = false;
-        pressedNext = false;
-        pressedPrev = false;
-
     }
 }
@@ -8,7 +8,14 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MusicPlayerGUI extends JFrame {
 
@@ -23,8 +30,24 @@ public class MusicPlayerGUI extends JFrame {
     private JFileChooser jFileChooser;
 
     private JLabel songTitle, songArtist;
+
+    //shows how far along a playlist is with loading
+    private JLabel playlistLoadStatus;
+
+    //shows how far along a library scan is
+    private JLabel libraryScanStatus;
+    private LibraryScanner libraryScanner;
+
+    //measures the loudness of the library songs (null until it gets started)
+    private LoudnessAnalyzer loudnessAnalyzer;
+
+    //picks up changes in the library folders (null if the file system can't be watched)
+    private LibraryWatcher libraryWatcher;
     private JPanel playbackBtns;
-    private JSlider playbackSlider;
+    private WaveformSlider playbackSlider;
+
+    //works out the waveform of the current song if it isn't in the cache yet
+    private SwingWorker<PeakFile, Void> peakFileCreator;
 
     public MusicPlayerGUI() {
 
@@ -56,9 +79,51 @@ public class MusicPlayerGUI extends JFrame {
         //change the frame color
         getContentPane().setBackground(FRAME_COLOR);
 
-        musicPlayer = new MusicPlayer(this);
+        // the player's state lives on the EDT like the rest of the gui, its events get batched up for the EDT too
+        musicPlayer = new MusicPlayer(new PlayerEventDispatcher(new MusicPlayer.Listener() {
+            @Override
+            public void songChanged(Song song) {
+                updateSongTitleAndArtist(song);
+                updatePlaybackSlider(song);
+                setPlaybackSliderValue(0);
+            }
+
+            @Override
+            public void playingChanged(boolean playing) {
+                if (playing) enablePauseDisablePlay();
+                else enablePlayDisablePause();
+            }
+
+            @Override
+            public void positionChanged(int frame) {
+                setPlaybackSliderValue(frame);
+            }
+
+            @Override
+            public void playlistLoadProgressChanged(int percent) {
+                updatePlaylistLoadProgress(percent);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                SwingUtilities.invokeLater(task);
+            }
+        }), new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                // already on the EDT for anything the gui itself does
+                if (SwingUtilities.isEventDispatchThread()) task.run();
+                else SwingUtilities.invokeLater(task);
+            }
+        });
         jFileChooser = new JFileChooser();
 
+        try{
+            libraryWatcher = new LibraryWatcher(MusicLibrary.getInstance());
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+
         //set a default path for file explorer
         jFileChooser.setCurrentDirectory(new File("src/assets"));
 
@@ -74,8 +139,11 @@ public class MusicPlayerGUI extends JFrame {
             //add the toolbar
             addToolbar();
 
-            // load record image
-            JLabel songImage = new JLabel(loadImage("src/assets/record1.png"));
+            // record image with the live spectrum of what's playing over it
+            SpectrumAnalyzer spectrumAnalyzer = new SpectrumAnalyzer();
+            spectrumAnalyzer.start();
+            musicPlayer.setSpectrumAnalyzer(spectrumAnalyzer);
+            SpectrumView songImage = new SpectrumView(spectrumAnalyzer, loadImage("src/assets/record1.png"));
             songImage.setBounds(0, 50, getWidth() - 20, 225);
             add(songImage);
 
@@ -96,9 +164,9 @@ public class MusicPlayerGUI extends JFrame {
             songArtist.setHorizontalAlignment(SwingConstants.CENTER);
             add(songArtist);
 
-            // playback slider
-            playbackSlider = new JSlider(JSlider.HORIZONTAL, 0, 100, 0);
-            playbackSlider.setBounds(getWidth()/2 - 300/2, 365, 300, 40);
+            // playback slider (with the song's waveform behind it)
+            playbackSlider = new WaveformSlider(0, 100, 0);
+            playbackSlider.setBounds(getWidth()/2 - 300/2, 355, 300, 70);
             playbackSlider.setBackground(FRAME_COLOR);
             playbackSlider.addMouseListener(new MouseAdapter() {
                 @Override
@@ -119,9 +187,6 @@ public class MusicPlayerGUI extends JFrame {
                     //update the current music player to this frame
                     musicPlayer.setCurrentFrame(frame);
 
-                    //update current time in milli as well
-                    musicPlayer.setCurrentTimeInMilli((int) (frame / (2.08 * musicPlayer.getCurrentSong().getFrameRatePerMilliseconds())));
-
                     //resume the song
                     musicPlayer.playCurrentSong();
 
@@ -169,20 +234,7 @@ public class MusicPlayerGUI extends JFrame {
 
                     if(result == JFileChooser.APPROVE_OPTION && selectedFile != null){
                         //create a song obj based on selected file
-                        Song song = new Song(selectedFile.getPath());
-
-                        //load song in music player
-                        musicPlayer.loadSong(song);
-
-                        //update song title and artist
-                        updateSongTitleAndArtist(song);
-
-                        //update playback slider
-                        updatePlaybackSlider(song);
-
-                        //toggle on pause button and toggle off play button
-                        enablePauseDisablePlay();
-
+                        loadSong(new Song(selectedFile.getPath()));
                     }
                 }
 
@@ -210,7 +262,7 @@ public class MusicPlayerGUI extends JFrame {
             loadPlaylist.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e){
                     JFileChooser jFileChooser = new JFileChooser();
-                    jFileChooser.setFileFilter(new FileNameExtensionFilter("Playlist", "txt"));
+                    jFileChooser.setFileFilter(new FileNameExtensionFilter("Playlist", PlaylistFile.EXTENSION, "txt", "m3u", "m3u8", "pls"));
                     jFileChooser.setCurrentDirectory(new File("src/assets"));
 
                     int result = jFileChooser.showOpenDialog(MusicPlayerGUI.this);
@@ -228,8 +280,134 @@ public class MusicPlayerGUI extends JFrame {
                 }
             });
             playlistMenu.add(loadPlaylist);
+            playlistMenu.addSeparator();
+
+            final JCheckBoxMenuItem shuffle = new JCheckBoxMenuItem("Shuffle");
+            shuffle.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e){
+                    musicPlayer.setShuffle(shuffle.isSelected());
+                }
+            });
+            playlistMenu.add(shuffle);
+
+            // one radio item per repeat mode
+            JMenu repeatMenu = new JMenu("Repeat");
+            ButtonGroup repeatGroup = new ButtonGroup();
+            String[] repeatNames = {"Off", "One", "All"};
+            for (final PlayOrder.RepeatMode repeatMode : PlayOrder.RepeatMode.values()){
+                JRadioButtonMenuItem repeatItem = new JRadioButtonMenuItem(repeatNames[repeatMode.ordinal()]);
+                repeatItem.setSelected(repeatMode == musicPlayer.getRepeatMode());
+                repeatItem.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e){
+                        musicPlayer.setRepeatMode(repeatMode);
+                    }
+                });
+                repeatGroup.add(repeatItem);
+                repeatMenu.add(repeatItem);
+            }
+            playlistMenu.add(repeatMenu);
+
+            // how long consecutive songs overlap
+            JMenu crossfadeMenu = new JMenu("Crossfade");
+            ButtonGroup crossfadeGroup = new ButtonGroup();
+            for (int seconds = 0; seconds * 1000 <= PlaybackEngine.MAX_CROSSFADE_MS; seconds += 2){
+                final int crossfadeMillis = seconds * 1000;
+                JRadioButtonMenuItem crossfadeItem = new JRadioButtonMenuItem(seconds == 0 ? "Off" : seconds + " s");
+                crossfadeItem.setSelected(crossfadeMillis == musicPlayer.getCrossfadeMillis());
+                crossfadeItem.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e){
+                        musicPlayer.setCrossfadeMillis(crossfadeMillis);
+                    }
+                });
+                crossfadeGroup.add(crossfadeItem);
+                crossfadeMenu.add(crossfadeItem);
+            }
+            playlistMenu.add(crossfadeMenu);
+
+            //add the library menu
+            JMenu libraryMenu = new JMenu("Library");
+            menuBar.add(libraryMenu);
+
+            JMenuItem scanFolder = new JMenuItem("Scan Folder");
+            scanFolder.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e){
+                    JFileChooser jFileChooser = new JFileChooser();
+                    jFileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+
+                    int result = jFileChooser.showOpenDialog(MusicPlayerGUI.this);
+                    File selectedFile = jFileChooser.getSelectedFile();
+
+                    if (result == JFileChooser.APPROVE_OPTION && selectedFile != null){
+                        scanLibrary(Collections.singletonList(selectedFile.toPath()));
+                    }
+                }
+            });
+            libraryMenu.add(scanFolder);
 
+            JMenuItem rescanLibrary = new JMenuItem("Rescan Library");
+            rescanLibrary.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e){
+                    List<Path> roots = new ArrayList<>();
+                    for (String root : MusicLibrary.getInstance().getRoots()) roots.add(Paths.get(root));
+                    scanLibrary(roots);
+                }
+            });
+            libraryMenu.add(rescanLibrary);
 
+            JMenuItem searchLibrary = new JMenuItem("Search");
+            searchLibrary.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e){
+                    new SearchDialog(MusicPlayerGUI.this).setVisible(true);
+                }
+            });
+            libraryMenu.add(searchLibrary);
+            libraryMenu.addSeparator();
+
+            // starts the loudness analysis or stops it if it's running (it picks up where it left off next time)
+            JMenuItem analyzeLoudness = new JMenuItem("Analyze Loudness");
+            analyzeLoudness.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e){
+                    if (loudnessAnalyzer != null && !loudnessAnalyzer.isDone()){
+                        loudnessAnalyzer.cancel(true);
+                        return;
+                    }
+                    List<String> filePaths = new ArrayList<>();
+                    for (SongMetadataCache.Entry song : MusicLibrary.getInstance().getSongs()) filePaths.add(song.getFilePath());
+                    loudnessAnalyzer = new LoudnessAnalyzer(filePaths, MusicPlayerGUI.this);
+                    loudnessAnalyzer.execute();
+                }
+            });
+            libraryMenu.add(analyzeLoudness);
+
+            // which replay gain gets applied while playing
+            JMenu volumeLevelingMenu = new JMenu("Volume Leveling");
+            ButtonGroup volumeLevelingGroup = new ButtonGroup();
+            String[] volumeLevelingNames = {"Off", "Track", "Album"};
+            for (final ReplayGain.Mode replayGainMode : ReplayGain.Mode.values()){
+                JRadioButtonMenuItem volumeLevelingItem = new JRadioButtonMenuItem(volumeLevelingNames[replayGainMode.ordinal()]);
+                volumeLevelingItem.setSelected(replayGainMode == musicPlayer.getReplayGainMode());
+                volumeLevelingItem.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e){
+                        musicPlayer.setReplayGainMode(replayGainMode);
+                    }
+                });
+                volumeLevelingGroup.add(volumeLevelingItem);
+                volumeLevelingMenu.add(volumeLevelingItem);
+            }
+            libraryMenu.add(volumeLevelingMenu);
+
+            // playlist loading progress (hidden until a playlist is loading)
+            toolBar.add(Box.createHorizontalGlue());
+            playlistLoadStatus = new JLabel();
+            playlistLoadStatus.setFont(new Font("Dialog", Font.PLAIN, 12));
+            playlistLoadStatus.setVisible(false);
+            toolBar.add(playlistLoadStatus);
+
+            // library scan progress (hidden until a scan is running)
+            libraryScanStatus = new JLabel();
+            libraryScanStatus.setFont(new Font("Dialog", Font.PLAIN, 12));
+            libraryScanStatus.setVisible(false);
+            toolBar.add(libraryScanStatus);
 
             add(toolBar);
         }
@@ -331,6 +509,42 @@ public class MusicPlayerGUI extends JFrame {
         playbackSlider.setValue(frame);
     }
 
+    // percent is between 0 and 100, anything negative hides the status
+    public void updatePlaylistLoadProgress(int percent){
+        if (percent < 0){
+            playlistLoadStatus.setVisible(false);
+            return;
+        }
+        playlistLoadStatus.setText("Loading playlist " + percent + "%  ");
+        playlistLoadStatus.setVisible(true);
+    }
+
+    public void loadSong(Song song){
+        //load song in music player (which tells the gui about the new song)
+        musicPlayer.loadSong(song);
+    }
+
+    // null hides the status
+    public void updateLibraryScanStatus(String status){
+        libraryScanStatus.setText(status == null ? "" : status + "  ");
+        libraryScanStatus.setVisible(status != null);
+    }
+
+    // scans the folders in the background (only one scan runs at a time)
+    private void scanLibrary(List<Path> roots){
+        if (roots.isEmpty()) return;
+        if (libraryScanner != null && !libraryScanner.isDone()) libraryScanner.cancel(true);
+
+        libraryScanner = new LibraryScanner(roots, MusicLibrary.getInstance(), this);
+        libraryScanner.execute();
+    }
+
+    // gets called on the EDT by the library scanner, from now on the watcher keeps these folders up to date
+    public void libraryScanFinished(List<Path> roots){
+        if (libraryWatcher == null) return;
+        for (Path root : roots) libraryWatcher.addRoot(root);
+    }
+
     public void updateSongTitleAndArtist(Song song){
         songTitle.setText(song.getSongTitle());
         songArtist.setText(song.getSongArtist());
@@ -338,7 +552,7 @@ public class MusicPlayerGUI extends JFrame {
 
     public void updatePlaybackSlider(Song song){
         //update max count for slider
-        playbackSlider.setMaximum(song.getMp3File().getFrameCount());
+        playbackSlider.setMaximum(song.getFrameCount());
 
         //create the song length label
         Hashtable<Integer, JLabel> labelTable = new Hashtable<>();
@@ -354,11 +568,40 @@ public class MusicPlayerGUI extends JFrame {
         labelEnd.setForeground(TEXT_COLOR);
 
         labelTable.put(0, labelBeginning);
-        labelTable.put(song.getMp3File().getFrameCount(), labelEnd);
+        labelTable.put(song.getFrameCount(), labelEnd);
 
         playbackSlider.setLabelTable(labelTable);
         playbackSlider.setPaintLabels(true);
 
+        updateWaveform(song);
+    }
+
+    // shows the song's waveform straight from the cache, or works it out in the background the first time
+    private void updateWaveform(final Song song){
+        if (peakFileCreator != null) peakFileCreator.cancel(true);
+        peakFileCreator = null;
+
+        PeakFile peakFile = PeakFile.load(song);
+        playbackSlider.setPeakFile(peakFile);
+        if (peakFile != null) return;
+
+        peakFileCreator = new SwingWorker<PeakFile, Void>() {
+            @Override
+            protected PeakFile doInBackground() throws Exception {
+                return PeakFile.create(song);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) return;
+                try{
+                    playbackSlider.setPeakFile(get());
+                } catch (Exception e){
+                    e.printStackTrace();
+                }
+            }
+        };
+        peakFileCreator.execute();
     }
 
         private ImageIcon loadImage(String imagePath){
@@ -7,11 +7,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 public class MusicPlaylistDialog extends JDialog {
     private MusicPlayerGUI musicPlayerGUI;
 
-    // store all of the paths to be written to a txt file (when we load a playlist)
+    // store all of the paths to be written to the playlist file (when we load a playlist)
     private ArrayList<String> songPaths;
 
     public MusicPlaylistDialog(MusicPlayerGUI musicPlayerGUI) {
@@ -79,46 +81,82 @@ public class MusicPlaylistDialog extends JDialog {
         savePlaylistButton.addActionListener(new ActionListener() {
             @Override
            public void actionPerformed(ActionEvent e) {
-                try{
-                    JFileChooser jFileChooser = new JFileChooser();
-                    jFileChooser.setCurrentDirectory(new File("src/assets"));
-                    int result = jFileChooser.showSaveDialog(MusicPlaylistDialog.this);
-
-                    if (result == JFileChooser.APPROVE_OPTION) {
-                        // use getSelectedFile() to get reference to the file that is about to be saved
-                        File selectedFile = jFileChooser.getSelectedFile();
-
-                        //convert to .txt file if not done so already
-                        // this will check to see if the file does not have the .txt file extension
-                        if (!selectedFile.getName().substring(selectedFile.getName().length() - 4).equalsIgnoreCase(".txt")) {
-                            selectedFile = new File(selectedFile.getAbsoluteFile() + ".txt");
-                        }
-
-                        //create the new file at the designated directory
-                        selectedFile.createNewFile();
-
-                        // write all of the song paths into this file
-                        FileWriter fileWriter = new FileWriter(selectedFile);
-                        BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-
-                        // iterate through song paths list and write each string into the file
-                        // each song will be written in their own row
-                        for(String songPath : songPaths) {
-                            bufferedWriter.write(songPath + "\n");
-                        }
-                        bufferedWriter.close();
-
-                        //display success dialog
-                        JOptionPane.showMessageDialog(MusicPlaylistDialog.this, "Playlist Saved");
-
-                        //close this dialog
-                        MusicPlaylistDialog.this.dispose();
-                    }
-                } catch(Exception ex){
-                    ex.printStackTrace();
+                JFileChooser jFileChooser = new JFileChooser();
+                jFileChooser.setCurrentDirectory(new File("src/assets"));
+                int result = jFileChooser.showSaveDialog(MusicPlaylistDialog.this);
+
+                if (result == JFileChooser.APPROVE_OPTION) {
+                    // use getSelectedFile() to get reference to the file that is about to be saved
+                    File selectedFile = jFileChooser.getSelectedFile();
+
+                    // the songs that aren't in the metadata cache get parsed while saving, so keep that off the EDT
+                    savePlaylistButton.setEnabled(false);
+                    new PlaylistSaver(selectedFile, new ArrayList<>(songPaths), savePlaylistButton).execute();
                 }
            }
         });
         add(savePlaylistButton);
     }
+
+    //writes the playlist file in the background and closes the dialog once it's saved
+    private class PlaylistSaver extends SwingWorker<Void, Void> {
+        private File selectedFile;
+        private final List<String> songPaths;
+        private final JButton savePlaylistButton;
+
+        PlaylistSaver(File selectedFile, List<String> songPaths, JButton savePlaylistButton) {
+            this.selectedFile = selectedFile;
+            this.songPaths = songPaths;
+            this.savePlaylistButton = savePlaylistButton;
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            // playlists are saved as .jpl (with the metadata of each song so loading them is quick)
+            // unless a plain .txt file was asked for
+            if (selectedFile.getName().toLowerCase(Locale.ROOT).endsWith(".txt")) {
+                // write all of the song paths into this file
+                FileWriter fileWriter = new FileWriter(selectedFile);
+                BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
+
+                // iterate through song paths list and write each string into the file
+                // each song will be written in their own row
+                for(String songPath : songPaths) {
+                    bufferedWriter.write(songPath + "\n");
+                }
+                bufferedWriter.close();
+            } else {
+                if (!PlaylistFile.isBinaryPlaylist(selectedFile)) {
+                    selectedFile = new File(selectedFile.getAbsoluteFile() + "." + PlaylistFile.EXTENSION);
+                }
+
+                try (PlaylistFile.Writer playlistWriter = new PlaylistFile.Writer(selectedFile)) {
+                    for(String songPath : songPaths) {
+                        // songs that can't be read would be skipped when loading anyway
+                        SongMetadataCache.Entry metadata = Song.readMetadata(songPath);
+                        if (metadata != null) playlistWriter.write(metadata);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            // runs on the EDT
+            try {
+                get();
+            } catch (Exception e) {
+                e.printStackTrace();
+                savePlaylistButton.setEnabled(true);
+                return;
+            }
+
+            //display success dialog
+            JOptionPane.showMessageDialog(MusicPlaylistDialog.this, "Playlist Saved");
+
+            //close this dialog
+            MusicPlaylistDialog.this.dispose();
+        }
+    }
 }
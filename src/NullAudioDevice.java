@@ -0,0 +1,75 @@
+//audio device that throws the audio away as fast as it comes (-Djamp.audioOutput=null)
+//
+//there is no line and no output thread, everything written counts as played right away, so the playback engine decodes
+//as fast as it can. used to measure what the engine itself costs and to run on machines without a sound card
+public class NullAudioDevice extends PlaybackAudioDevice {
+
+    private volatile long writtenSampleFrames;
+    private volatile int sampleRate;
+    private int formatSampleRate;
+    private int channels;
+
+    @Override
+    public void setFormat(int sampleRate, int channels) {
+        formatSampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    @Override
+    protected void writeImpl(short[] samples, int offset, int length) {
+        // only the engine thread writes
+        sampleRate = formatSampleRate;
+        writtenSampleFrames += length / channels;
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public void resume() {
+    }
+
+    @Override
+    public void discardBuffered() {
+    }
+
+    @Override
+    public boolean hasRoomFor(int samples) {
+        return true;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return true;
+    }
+
+    @Override
+    protected void flushImpl() {
+    }
+
+    @Override
+    protected void closeImpl() {
+    }
+
+    @Override
+    public long getPlayedSampleFrames() {
+        return writtenSampleFrames;
+    }
+
+    @Override
+    public long getWrittenSampleFrames() {
+        return writtenSampleFrames;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getPosition() {
+        int rate = sampleRate;
+        return rate == 0 ? 0 : (int) (writtenSampleFrames * 1000 / rate);
+    }
+}
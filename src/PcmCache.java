@@ -0,0 +1,218 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+//keeps the pcm of recently played songs so that seeking back or playing a song again doesn't have to decode it again
+//
+//the pcm is kept in blocks of BLOCK_FRAMES mp3 frames, as it comes out of the decoder (before trimming and replay gain).
+//TrackDecoder fills a block while it decodes one from its first frame to its last and reads blocks back instead of
+//decoding whenever it gets to a block that is cached. every block has its own direct buffer, made the first time the
+//block is needed and reused from then on, so the pcm is never on the java heap and the cache never holds more than
+//its budget (-Djamp.pcmCacheMb=<megabytes>, 0 turns it off). once all the blocks are in use the CLOCK algorithm picks
+//one that hasn't been read for a while to reuse. blocks are pinned while they get read or filled so they can't be
+//reused under a decoder
+public class PcmCache {
+
+    //about 0.8s of audio
+    public static final int BLOCK_FRAMES = 32;
+
+    //enough for BLOCK_FRAMES of the biggest mp3 frames
+    private static final int BLOCK_SAMPLES = BLOCK_FRAMES * TrackDecoder.MAX_FRAME_SAMPLES;
+
+    private static final long BUDGET_BYTES = Math.max(0, Long.getLong("jamp.pcmCacheMb", 64)) << 20;
+
+    private static final Metrics.Counter hits = Metrics.counter("pcmCache.hits");
+    private static final Metrics.Counter misses = Metrics.counter("pcmCache.misses");
+    private static final Metrics.Counter evictions = Metrics.counter("pcmCache.evictions");
+
+    private static PcmCache instance;
+    private static boolean created;
+
+    // null if the cache is turned off
+    public static synchronized PcmCache getInstance(){
+        if (!created){
+            created = true;
+            int blockCount = (int) Math.min(Integer.MAX_VALUE, BUDGET_BYTES / (BLOCK_SAMPLES * 2L));
+            if (blockCount > 0) instance = new PcmCache(blockCount);
+        }
+        return instance;
+    }
+
+    // identifies the file's current contents, a file that changes gets new keys so its old blocks just age out
+    public static String keyOf(Song song){
+        File file = new File(song.getFilePath());
+        return file.getPath() + '\0' + file.length() + '\0' + file.lastModified();
+    }
+
+    //which part of which file a block holds
+    private static class Key {
+        final String file;
+        final int block;
+
+        Key(String file, int block) {
+            this.file = file;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return block == key.block && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, block);
+        }
+    }
+
+    //the pcm of up to BLOCK_FRAMES consecutive frames
+    //only the decoder that got it from allocate() writes to it, and only until it gets published. after that any
+    //number of decoders can read it at the same time
+    public static class Block {
+        private final ShortBuffer samples;
+
+        //where each frame ends in samples
+        private final int[] frameEnds = new int[BLOCK_FRAMES];
+        private int frameCount;
+        private int sampleRate;
+        private int channels;
+        private boolean endOfSong;
+
+        // the rest is guarded by the cache
+        private Key key;
+        private int pins;
+        private boolean referenced;
+
+        Block() {
+            samples = ByteBuffer.allocateDirect(BLOCK_SAMPLES * 2).asShortBuffer();
+        }
+
+        // adds a decoded frame, false if it doesn't fit (a different format or a full block)
+        public boolean append(short[] frame, int offset, int length, int sampleRate, int channels){
+            if (frameCount == 0){
+                this.sampleRate = sampleRate;
+                this.channels = channels;
+            } else if (sampleRate != this.sampleRate || channels != this.channels){
+                return false;
+            }
+            int start = frameCount == 0 ? 0 : frameEnds[frameCount - 1];
+            if (frameCount == BLOCK_FRAMES || start + length > BLOCK_SAMPLES) return false;
+
+            samples.put(start, frame, offset, length);
+            frameEnds[frameCount++] = start + length;
+            return true;
+        }
+
+        // copies the frame into the buffer (from 0) and returns how many samples it has
+        public int read(int frame, short[] buffer){
+            int start = frame == 0 ? 0 : frameEnds[frame - 1];
+            int length = frameEnds[frame] - start;
+            samples.get(start, buffer, 0, length);
+            return length;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        // the song ends with this block's last frame
+        public boolean isEndOfSong() {
+            return endOfSong;
+        }
+
+        private void clear(){
+            frameCount = 0;
+            sampleRate = 0;
+            channels = 0;
+            endOfSong = false;
+        }
+    }
+
+    private final Block[] blocks;
+    private final Map<Key, Block> index = new HashMap<>();
+
+    //blocks[0..blocksMade) have been made, the rest only get made once needed
+    private int blocksMade;
+    private int clockHand;
+
+    private PcmCache(int blockCount) {
+        blocks = new Block[blockCount];
+    }
+
+    // the block with that part of the file pinned for reading (release() it when done), null if it isn't cached
+    public synchronized Block lookup(String file, int block){
+        Block cached = index.get(new Key(file, block));
+        if (cached == null){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        cached.pins++;
+        cached.referenced = true;
+        return cached;
+    }
+
+    // an empty block to fill, pinned until it's published or released. null if every block is pinned
+    public synchronized Block allocate(){
+        if (blocksMade < blocks.length){
+            Block block = new Block();
+            blocks[blocksMade++] = block;
+            block.pins = 1;
+            return block;
+        }
+
+        // blocks that were read since the hand last came by get another round, the first one that wasn't is reused
+        for (int i = 0; i < blocks.length * 2; i++){
+            Block block = blocks[clockHand];
+            clockHand = (clockHand + 1) % blocks.length;
+            if (block.pins > 0) continue;
+            if (block.referenced){
+                block.referenced = false;
+                continue;
+            }
+            if (block.key != null){
+                index.remove(block.key);
+                block.key = null;
+                evictions.increment();
+            }
+            block.clear();
+            block.pins = 1;
+            return block;
+        }
+        return null;
+    }
+
+    // makes a filled block available to lookup() and unpins it
+    public synchronized void publish(String file, int blockIndex, Block block, boolean endOfSong){
+        Key key = new Key(file, blockIndex);
+        block.pins--;
+        // another decoder might have cached the same part in the meantime
+        if (index.containsKey(key)){
+            block.clear();
+            return;
+        }
+        block.endOfSong = endOfSong;
+        block.key = key;
+        block.referenced = true;
+        index.put(key, block);
+    }
+
+    // unpins a block from lookup(), or throws away one from allocate() that didn't get published
+    public synchronized void release(Block block){
+        block.pins--;
+        if (block.key == null) block.clear();
+    }
+}
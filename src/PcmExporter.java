@@ -0,0 +1,237 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//decodes songs to wav or raw pcm files (16 bit little endian, interleaved) as fast as the cores allow
+//
+//every song is decoded by one worker from start to end (one decoder per worker thread, the same TrackDecoder playback
+//uses so the encoder delay and padding get trimmed the same way). the pcm goes into a big direct buffer per worker
+//that gets written with a FileChannel whenever it's full, so the decoder never waits on small writes.
+//output files are written under a temporary name and renamed once they are complete
+public class PcmExporter {
+
+    public enum Format {
+        WAV("wav"),
+        PCM("pcm");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    //gets told about every song as soon as it's done, called from the worker threads
+    public interface Listener {
+        void songExported(Result result);
+    }
+
+    public static class Result {
+        private final String filePath;
+        private final File outputFile;
+        private final long sampleFrames;
+        private final int sampleRate;
+        private final long nanos;
+        private final Exception error;
+
+        Result(String filePath, File outputFile, long sampleFrames, int sampleRate, long nanos, Exception error) {
+            this.filePath = filePath;
+            this.outputFile = outputFile;
+            this.sampleFrames = sampleFrames;
+            this.sampleRate = sampleRate;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        // null if the song couldn't be exported
+        public File getOutputFile() {
+            return outputFile;
+        }
+
+        // null if it worked
+        public Exception getError() {
+            return error;
+        }
+
+        // how much audio was exported
+        public double getAudioSeconds(){
+            return sampleRate == 0 ? 0 : (double) sampleFrames / sampleRate;
+        }
+
+        // how long decoding and writing took
+        public double getSeconds(){
+            return nanos / 1e9;
+        }
+
+        // seconds of audio per second of work
+        public double getRealtimeFactor(){
+            return getAudioSeconds() / Math.max(1e-9, getSeconds());
+        }
+    }
+
+    //pcm buffered per worker before it gets written
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private static final int WAV_HEADER_SIZE = 44;
+
+    private final File outputDirectory;
+    private final Format format;
+    private final int threadCount;
+
+    //each worker thread fills its own buffer
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    public PcmExporter(File outputDirectory, Format format, int threadCount) {
+        this.outputDirectory = outputDirectory;
+        this.format = format;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    // exports all the songs and returns the results in the same order, songs that fail don't stop the others
+    public List<Result> export(List<String> filePaths, final Listener listener) throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory.toPath());
+
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pcm-exporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try{
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < filePaths.size(); i++){
+                final String filePath = filePaths.get(i);
+                // numbered so songs with the same name don't overwrite each other and the files sort in playlist order
+                final File outputFile = new File(outputDirectory, String.format(Locale.ROOT, "%04d - %s.%s", i + 1,
+                        baseName(filePath), format.extension));
+                futures.add(workers.submit(() -> {
+                    Result result = exportSong(filePath, outputFile);
+                    if (listener != null) listener.songExported(result);
+                    return result;
+                }));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures){
+                try{
+                    results.add(future.get());
+                } catch (ExecutionException e){
+                    // exportSong() catches everything itself
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally{
+            workers.shutdownNow();
+        }
+    }
+
+    private Result exportSong(String filePath, File outputFile){
+        long startTime = System.nanoTime();
+        File tempFile = new File(outputFile.getPath() + ".part");
+        TrackDecoder decoder = null;
+        try{
+            Song song = new Song(filePath, true);
+            if (!song.isLoaded()) throw new IOException("cannot read " + filePath);
+            decoder = new TrackDecoder(song, 0, false);
+
+            long samples = 0;
+            int sampleRate;
+            int channels;
+            // the file has to be closed before it can be renamed
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                // the header gets filled in at the end once the sizes are known
+                if (format == Format.WAV) channel.position(WAV_HEADER_SIZE);
+
+                int length;
+                while ((length = decoder.decodeFrame()) >= 0){
+                    if (buffer.remaining() < length * 2) write(channel, buffer);
+
+                    // bulk copy through a short view of the buffer
+                    ShortBuffer shorts = buffer.asShortBuffer();
+                    shorts.put(decoder.getBuffer(), decoder.getOffset(), length);
+                    buffer.position(buffer.position() + length * 2);
+                    samples += length;
+                }
+                write(channel, buffer);
+
+                sampleRate = decoder.getSampleRate();
+                channels = Math.max(1, decoder.getChannels());
+                if (format == Format.WAV) writeWavHeader(channel, buffer, sampleRate, channels, samples * 2);
+            }
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            return new Result(filePath, outputFile, samples / channels, sampleRate, System.nanoTime() - startTime, null);
+        } catch (Exception e){
+            tempFile.delete();
+            return new Result(filePath, null, 0, 0, System.nanoTime() - startTime, e);
+        } finally{
+            if (decoder != null) decoder.close();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    // canonical 44 byte RIFF/WAVE header for 16 bit pcm
+    private static void writeWavHeader(FileChannel channel, ByteBuffer buffer, int sampleRate, int channels,
+                                       long dataBytes) throws IOException {
+        // sizes are 32 bit, anything bigger gets the largest size (most readers then just read to the end)
+        int dataSize = (int) Math.min(dataBytes, 0xFFFFFFFFL - 36);
+        buffer.clear();
+        buffer.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        buffer.putInt(36 + dataSize);
+        buffer.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        buffer.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        buffer.putInt(16);
+        buffer.putShort((short) 1); // pcm
+        buffer.putShort((short) channels);
+        buffer.putInt(sampleRate);
+        buffer.putInt(sampleRate * channels * 2);
+        buffer.putShort((short) (channels * 2));
+        buffer.putShort((short) 16);
+        buffer.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        buffer.putInt(dataSize);
+        buffer.flip();
+        long position = 0;
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        buffer.clear();
+    }
+
+    private static String baseName(String filePath){
+        String name = new File(filePath).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,230 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.OutputChannels;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//waveform overview of a song (the lowest and highest sample of every bucket of samples), used to draw the seek bar
+//
+//it takes a full decode to work out so it's kept in the cache (one file per song), a song that has been seen before
+//only has to map its peak file. there are several levels, each with a quarter of the buckets of the one before, so
+//drawing only has to go over about as many buckets as there are pixels no matter how long the song is
+//
+//file layout: [magic int][version int][path length int][path bytes][file size long][last modified long]
+//             [level count int] followed by each level as [bucket count int][min byte, max byte for each bucket]
+public class PeakFile {
+
+    private static final int MAGIC = 0x4A504B31; // "JPK1"
+    private static final int VERSION = 1;
+
+    //sample frames per bucket of the most detailed level (about 12ms at 44.1kHz)
+    private static final int FRAMES_PER_BUCKET = 512;
+
+    //levels stop once they have fewer buckets than this
+    private static final int MIN_BUCKETS = 256;
+
+    //where each level starts in the mapped file and how many buckets it has
+    private final ByteBuffer buffer;
+    private final int[] levelOffsets;
+    private final int[] levelBuckets;
+
+    private PeakFile(ByteBuffer buffer, int[] levelOffsets, int[] levelBuckets) {
+        this.buffer = buffer;
+        this.levelOffsets = levelOffsets;
+        this.levelBuckets = levelBuckets;
+    }
+
+    // maps the song's peak file, null if there is none yet or the song has changed since it was made
+    public static PeakFile load(Song song){
+        File file = new File(song.getFilePath());
+        Path peakFile = SongMetadataCache.cacheFileFor(file, "peaks", ".pk");
+        if (!Files.exists(peakFile)) return null;
+
+        try (FileChannel channel = FileChannel.open(peakFile, StandardOpenOption.READ)){
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+
+            byte[] path = new byte[buffer.getInt()];
+            buffer.get(path);
+            if (!new String(path, StandardCharsets.UTF_8).equals(file.getPath())) return null;
+            if (buffer.getLong() != file.length() || buffer.getLong() != file.lastModified()) return null;
+
+            int levelCount = buffer.getInt();
+            int[] levelOffsets = new int[levelCount];
+            int[] levelBuckets = new int[levelCount];
+            for (int level = 0; level < levelCount; level++){
+                levelBuckets[level] = buffer.getInt();
+                levelOffsets[level] = buffer.position();
+                buffer.position(buffer.position() + levelBuckets[level] * 2);
+            }
+            return new PeakFile(buffer, levelOffsets, levelBuckets);
+        } catch (Exception e){
+            // broken peak file, it just gets made again
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // decodes the song to work out its peaks and writes them to the cache (takes a moment, call it off the EDT)
+    public static PeakFile create(Song song) throws Exception {
+        File file = new File(song.getFilePath());
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+
+        // only one channel gets synthesized, that's most of the decoding work and the overview doesn't need both
+        Decoder.Params params = new Decoder.Params();
+        params.setOutputChannels(OutputChannels.DOWNMIX);
+        Decoder decoder = new Decoder(params);
+        Bitstream bitstream = new Bitstream(song.getSource().openStream(song.getMp3Header().getAudioDataStart()));
+
+        byte[] peaks = new byte[4096];
+        int buckets = 0;
+        int min = 0;
+        int max = 0;
+        int samplesInBucket = 0;
+        try{
+            Header header;
+            while ((header = bitstream.readFrame()) != null){
+                SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+                bitstream.closeFrame();
+
+                short[] samples = output.getBuffer();
+                int length = output.getBufferLength();
+                int samplesPerBucket = FRAMES_PER_BUCKET * output.getChannelCount();
+                for (int i = 0; i < length; i++){
+                    int sample = samples[i];
+                    if (sample < min) min = sample;
+                    if (sample > max) max = sample;
+                    if (++samplesInBucket == samplesPerBucket){
+                        if (buckets * 2 + 2 > peaks.length) peaks = Arrays.copyOf(peaks, peaks.length * 2);
+                        peaks[buckets * 2] = (byte) (min >> 8);
+                        peaks[buckets * 2 + 1] = (byte) (max >> 8);
+                        buckets++;
+                        min = 0;
+                        max = 0;
+                        samplesInBucket = 0;
+                    }
+                }
+            }
+        } finally{
+            bitstream.close();
+        }
+        if (samplesInBucket > 0){
+            if (buckets * 2 + 2 > peaks.length) peaks = Arrays.copyOf(peaks, peaks.length * 2);
+            peaks[buckets * 2] = (byte) (min >> 8);
+            peaks[buckets * 2 + 1] = (byte) (max >> 8);
+            buckets++;
+        }
+
+        // every level combines 4 buckets of the one before
+        List<byte[]> levels = new ArrayList<>();
+        levels.add(Arrays.copyOf(peaks, buckets * 2));
+        while (buckets >= MIN_BUCKETS * 4){
+            byte[] previous = levels.get(levels.size() - 1);
+            int previousBuckets = buckets;
+            buckets = (previousBuckets + 3) / 4;
+            byte[] level = new byte[buckets * 2];
+            for (int bucket = 0; bucket < buckets; bucket++){
+                byte levelMin = Byte.MAX_VALUE;
+                byte levelMax = Byte.MIN_VALUE;
+                for (int i = bucket * 4; i < Math.min(previousBuckets, bucket * 4 + 4); i++){
+                    levelMin = (byte) Math.min(levelMin, previous[i * 2]);
+                    levelMax = (byte) Math.max(levelMax, previous[i * 2 + 1]);
+                }
+                level[bucket * 2] = levelMin;
+                level[bucket * 2 + 1] = levelMax;
+            }
+            levels.add(level);
+        }
+
+        write(file, fileSize, lastModified, levels);
+        PeakFile peakFile = load(song);
+        if (peakFile != null) return peakFile;
+
+        // the file changed while it was decoded (or the cache can't be written), use what we have
+        int[] levelOffsets = new int[levels.size()];
+        int[] levelBuckets = new int[levels.size()];
+        ByteBuffer buffer = ByteBuffer.allocate(levels.stream().mapToInt(level -> level.length).sum());
+        for (int level = 0; level < levels.size(); level++){
+            levelOffsets[level] = buffer.position();
+            levelBuckets[level] = levels.get(level).length / 2;
+            buffer.put(levels.get(level));
+        }
+        return new PeakFile(buffer, levelOffsets, levelBuckets);
+    }
+
+    // the cached peaks or new ones if there are none yet
+    public static PeakFile loadOrCreate(Song song) throws Exception {
+        PeakFile peakFile = load(song);
+        return peakFile != null ? peakFile : create(song);
+    }
+
+    // written to a temp file and moved into place so a half written peak file never gets mapped
+    private static void write(File file, long fileSize, long lastModified, List<byte[]> levels){
+        Path peakFile = SongMetadataCache.cacheFileFor(file, "peaks", ".pk");
+        try{
+            Files.createDirectories(peakFile.getParent());
+            Path tempFile = peakFile.resolveSibling(peakFile.getFileName() + ".tmp");
+
+            byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+            int length = 4 + 4 + 4 + path.length + 8 + 8 + 4;
+            for (byte[] level : levels) length += 4 + level.length;
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(path.length).put(path);
+            buffer.putLong(fileSize).putLong(lastModified);
+            buffer.putInt(levels.size());
+            for (byte[] level : levels) buffer.putInt(level.length / 2).put(level);
+            buffer.flip();
+
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)){
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tempFile, peakFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    // fills in the lowest and highest sample (as a fraction of full scale, -128 to 127) for each of the columns,
+    // using the least detailed level that still has a bucket for every column
+    public void getColumns(int columns, byte[] mins, byte[] maxs){
+        int level = 0;
+        while (level + 1 < levelBuckets.length && levelBuckets[level + 1] >= columns) level++;
+
+        int buckets = levelBuckets[level];
+        int offset = levelOffsets[level];
+        for (int column = 0; column < columns; column++){
+            int first = (int) ((long) column * buckets / columns);
+            int last = Math.max(first + 1, (int) ((long) (column + 1) * buckets / columns));
+            byte min = Byte.MAX_VALUE;
+            byte max = Byte.MIN_VALUE;
+            for (int bucket = first; bucket < Math.min(last, buckets); bucket++){
+                min = (byte) Math.min(min, buffer.get(offset + bucket * 2));
+                max = (byte) Math.max(max, buffer.get(offset + bucket * 2 + 1));
+            }
+            if (min > max){
+                // more columns than buckets (a very short song)
+                min = 0;
+                max = 0;
+            }
+            mins[column] = min;
+            maxs[column] = max;
+        }
+    }
+}
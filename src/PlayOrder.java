@@ -0,0 +1,231 @@
+import java.util.Arrays;
+
+//the order the tracks of a playlist get played in, with shuffle and repeat
+//
+//shuffling doesn't copy or shuffle the playlist, the order is a pseudorandom permutation of the playlist indexes
+//worked out on the fly from a seed (a small feistel network, cycle walked down to the playlist size). it can be
+//run backwards too, so next and previous both start from the index of the track that's playing and previous
+//retraces exactly the order the tracks were played in. reshuffling a playlist of any size just picks a new seed
+//
+//a playlist that is still loading keeps growing, and a permutation over the new size would be a different order
+//altogether. so the shuffled order is made of segments that never change once they are made: each segment shuffles
+//a range of playlist indexes among the same range of positions, with its own keys. the songs added after the last
+//segment keep their playlist order until playback gets to the end of the shuffled part, then they all become the
+//next segment (the songs up to the one that's playing keep their playlist order if it wasn't shuffled yet, they
+//were played in that order). what was played (and what is coming up in the current segment) stays the same however
+//the playlist grows
+public class PlayOrder {
+
+    public enum RepeatMode {
+        OFF,
+        // the track that finished plays again (next/previous still move on)
+        ONE,
+        // the playlist starts over after its last track
+        ALL
+    }
+
+    private static final int ROUNDS = 4;
+
+    private boolean shuffle;
+    private RepeatMode repeatMode = RepeatMode.OFF;
+
+    private long seed;
+
+    //where each segment starts (both playlist index and position) and its keys, one per feistel round
+    //(null for a segment that keeps the playlist order)
+    private int[] segmentStarts = new int[16];
+    private int[][] segmentKeys = new int[16][];
+    private int segmentCount;
+
+    //end of the last segment, everything from here on is in playlist order
+    private int shuffledSize;
+
+    public PlayOrder() {
+        reseed(System.nanoTime());
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    // turning shuffle on picks a new order every time
+    public void setShuffle(boolean shuffle) {
+        if (shuffle && !this.shuffle) reseed(System.nanoTime());
+        this.shuffle = shuffle;
+    }
+
+    public RepeatMode getRepeatMode() {
+        return repeatMode;
+    }
+
+    public void setRepeatMode(RepeatMode repeatMode) {
+        this.repeatMode = repeatMode;
+    }
+
+    // a new order, for a new playlist or when shuffle gets turned on
+    public void reseed(long seed){
+        this.seed = seed;
+        segmentCount = 0;
+        shuffledSize = 0;
+    }
+
+    // splitmix64 of the seed and the segment number, so that close seeds still give unrelated keys
+    private int[] keysFor(int segment){
+        int[] keys = new int[ROUNDS];
+        long state = seed + segment * 0xD1B54A32D192ED03L;
+        for (int i = 0; i < ROUNDS; i++){
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            keys[i] = (int) (z ^ (z >>> 31));
+        }
+        return keys;
+    }
+
+    // the songs that were added since the last segment become a new segment once the index is the last shuffled one
+    // or hasn't been shuffled yet, or once nothing more is going to be added
+    private void extendShuffle(int index, int size, boolean complete){
+        if (size <= shuffledSize) return;
+        if (!complete && index < shuffledSize && positionOf(index) < shuffledSize - 1) return;
+
+        // shuffling the index in with the new songs would skip the ones that land in front of it
+        if (index >= shuffledSize && index < size) addSegment(index + 1, null);
+        if (size > shuffledSize) addSegment(size, keysFor(segmentCount));
+    }
+
+    // the songs from the end of the last segment up to end become a segment
+    private void addSegment(int end, int[] keys){
+        if (segmentCount == segmentStarts.length){
+            segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+            segmentKeys = Arrays.copyOf(segmentKeys, segmentCount * 2);
+        }
+        segmentStarts[segmentCount] = shuffledSize;
+        segmentKeys[segmentCount] = keys;
+        segmentCount++;
+        shuffledSize = end;
+    }
+
+    // the playlist index that gets played at the position (0 is played first)
+    public int indexAt(int position){
+        if (!shuffle || position >= shuffledSize) return position;
+        int segment = segmentOf(position);
+        if (segmentKeys[segment] == null) return position;
+        int start = segmentStarts[segment];
+        return start + permute(position - start, segmentEnd(segment) - start, segmentKeys[segment]);
+    }
+
+    // the position the playlist index gets played at
+    public int positionOf(int index){
+        if (!shuffle || index >= shuffledSize) return index;
+        int segment = segmentOf(index);
+        if (segmentKeys[segment] == null) return index;
+        int start = segmentStarts[segment];
+        return start + unpermute(index - start, segmentEnd(segment) - start, segmentKeys[segment]);
+    }
+
+    // the segment with the index (or position) in it
+    private int segmentOf(int value){
+        int low = 0;
+        int high = segmentCount - 1;
+        while (low < high){
+            int middle = (low + high + 1) >>> 1;
+            if (segmentStarts[middle] <= value) low = middle; else high = middle - 1;
+        }
+        return low;
+    }
+
+    private int segmentEnd(int segment){
+        return segment + 1 < segmentCount ? segmentStarts[segment + 1] : shuffledSize;
+    }
+
+    // the index after the given one or -1 at the end, wraps around for repeat all when the whole playlist is there
+    // (a playlist that's still loading has no end yet)
+    public int next(int index, int size, boolean complete){
+        if (size == 0) return -1;
+        if (shuffle) extendShuffle(index, size, complete);
+        int position = positionOf(index) + 1;
+        if (position == size){
+            if (repeatMode != RepeatMode.ALL || !complete) return -1;
+            position = 0;
+        }
+        return indexAt(position);
+    }
+
+    // the index before the given one or -1 at the start, wraps around for repeat all
+    public int previous(int index, int size, boolean complete){
+        if (size == 0) return -1;
+        if (shuffle) extendShuffle(index, size, complete);
+        int position = positionOf(index) - 1;
+        if (position < 0){
+            if (repeatMode != RepeatMode.ALL || !complete) return -1;
+            position = size - 1;
+        }
+        return indexAt(position);
+    }
+
+    // the index to play once the given one played to the end
+    public int afterFinished(int index, int size, boolean complete){
+        if (repeatMode == RepeatMode.ONE) return index;
+        return next(index, size, complete);
+    }
+
+    // the feistel network works on an even number of bits, results outside the playlist get sent through again
+    // until they land inside it (the domain is less than 4 times the size so that takes a couple of rounds at most
+    // on average)
+    private static int permute(int value, int size, int[] keys){
+        int halfBits = halfBits(size);
+        long x = value;
+        do{
+            x = encrypt(x, halfBits, keys);
+        } while (x >= size);
+        return (int) x;
+    }
+
+    private static int unpermute(int value, int size, int[] keys){
+        int halfBits = halfBits(size);
+        long x = value;
+        do{
+            x = decrypt(x, halfBits, keys);
+        } while (x >= size);
+        return (int) x;
+    }
+
+    private static int halfBits(int size){
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1));
+        return Math.max(1, (bits + 1) / 2);
+    }
+
+    private static long encrypt(long x, int halfBits, int[] keys){
+        long mask = (1L << halfBits) - 1;
+        long left = x >>> halfBits;
+        long right = x & mask;
+        for (int i = 0; i < ROUNDS; i++){
+            long newRight = left ^ (round(right, keys[i]) & mask);
+            left = right;
+            right = newRight;
+        }
+        return (left << halfBits) | right;
+    }
+
+    private static long decrypt(long x, int halfBits, int[] keys){
+        long mask = (1L << halfBits) - 1;
+        long left = x >>> halfBits;
+        long right = x & mask;
+        for (int i = ROUNDS - 1; i >= 0; i--){
+            long newLeft = right ^ (round(left, keys[i]) & mask);
+            right = left;
+            left = newLeft;
+        }
+        return (left << halfBits) | right;
+    }
+
+    private static long round(long half, int key){
+        int h = (int) half ^ key;
+        h *= 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,288 @@
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDeviceBase;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.concurrent.locks.LockSupport;
+
+//audio device that plays through a SourceDataLine (like JLayer's JavaSoundAudioDevice)
+//but also reports exactly how many sample frames the line has played, which is what the playback clock is based on
+//
+//the decoder doesn't write to the line itself, it fills a ring buffer of pcm samples that an output thread drains
+//into the line. that way a slow frame or a gc pause on the decoding side is covered by whatever is in the ring buffer.
+//the ring buffer only has one writer (the engine thread) and one reader (the output thread) so it needs no locks,
+//and nothing gets allocated once it's running. how much audio it holds can be set with -Djamp.bufferMs=<millis>
+public class PlaybackAudioDevice extends AudioDeviceBase {
+
+    //how much decoded audio is kept ready for the line
+    private static final int BUFFER_MS = Math.max(50, Integer.getInteger("jamp.bufferMs", 500));
+
+    //the line itself only holds a little, the ring buffer is what protects against underruns
+    private static final int LINE_BUFFER_MS = 100;
+
+    //enough for a few of the biggest mp3 frames (1152 samples for each of 2 channels)
+    private static final int MIN_RING_SIZE = 8192;
+
+    //how long a waiting thread sleeps before looking again (it usually gets woken up before that)
+    private static final long PARK_NANOS = 1_000_000;
+
+    private static final Metrics.Counter underruns = Metrics.counter("audio.underruns");
+
+    private volatile SourceDataLine line;
+    private volatile int sampleRate;
+
+    //position of the line when it got closed (a closed line doesn't report its position anymore)
+    private volatile long sampleFramesPlayedBeforeClose = -1;
+
+    //sample frames handed to the device so far (some of them might still be in the ring buffer or the line)
+    private volatile long writtenSampleFrames;
+    private int channels;
+
+    //format of the pcm that is going to be written, see setFormat()
+    private int formatSampleRate;
+    private int formatChannels;
+
+    //a paused line is stopped but keeps the audio that's buffered in it
+    private volatile boolean paused;
+    private volatile boolean closed;
+
+    //pcm ring buffer, the size is a power of two so wrapping around is just a mask
+    //both positions only ever grow, the engine thread moves writePosition and the output thread moves readPosition
+    private short[] ring;
+    private int ringMask;
+    private volatile long writePosition;
+    private volatile long readPosition;
+
+    //set by discardBuffered(), the output thread empties the ring buffer and the line and then clears it
+    private volatile boolean discardRequested;
+
+    private volatile Thread outputThread;
+    private volatile Thread writerThread;
+
+    //gets a copy of everything written to the line, null when there's no visualizer
+    private volatile SpectrumAnalyzer spectrumAnalyzer;
+
+    @Override
+    protected void writeImpl(short[] samples, int offset, int length) throws JavaLayerException {
+        if (line == null) createLine();
+        writerThread = Thread.currentThread();
+
+        int copied = 0;
+        while (copied < length){
+            if (closed) return;
+
+            int free = (int) (ring.length - (writePosition - readPosition));
+            if (free == 0){
+                // wait for the output thread to make room
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+
+            // copy in up to two parts in case it wraps around the end of the ring
+            int count = Math.min(length - copied, free);
+            int start = (int) (writePosition & ringMask);
+            int firstPart = Math.min(count, ring.length - start);
+            System.arraycopy(samples, offset + copied, ring, start, firstPart);
+            System.arraycopy(samples, offset + copied + firstPart, ring, 0, count - firstPart);
+            copied += count;
+            writePosition += count;
+            LockSupport.unpark(outputThread);
+        }
+        writtenSampleFrames += length / channels;
+    }
+
+    // the format of the pcm that gets written, has to be set before the first write. it comes from the TrackDecoder
+    // rather than JLayer's decoder since the first frames might not have been decoded by it (see PcmCache)
+    public void setFormat(int sampleRate, int channels){
+        formatSampleRate = sampleRate;
+        formatChannels = channels;
+    }
+
+    // the line can only be made once the output format is known (after the first frame)
+    private void createLine() throws JavaLayerException {
+        int frequency = formatSampleRate;
+        int outputChannels = formatChannels;
+        AudioFormat audioFormat = new AudioFormat(frequency, 16, outputChannels, true, false);
+        try{
+            SourceDataLine sourceDataLine = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class,
+                    audioFormat));
+            sourceDataLine.open(audioFormat, frequency * outputChannels * 2 * LINE_BUFFER_MS / 1000);
+            if (!paused) sourceDataLine.start();
+            sampleRate = frequency;
+            channels = outputChannels;
+
+            // round the ring buffer up to a power of two
+            int wanted = Math.max(MIN_RING_SIZE, frequency * outputChannels * BUFFER_MS / 1000);
+            int ringSize = Integer.highestOneBit(wanted - 1) << 1;
+            ring = new short[ringSize];
+            ringMask = ringSize - 1;
+            line = sourceDataLine;
+        } catch (LineUnavailableException | IllegalArgumentException e){
+            throw new JavaLayerException("cannot obtain source audio line", e);
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runOutput();
+            }
+        }, "audio-output");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        outputThread = thread;
+        thread.start();
+    }
+
+    // moves samples from the ring buffer into the line until the device gets closed
+    private void runOutput(){
+        SourceDataLine sourceDataLine = line;
+
+        // half the line's buffer at a time so a write on a paused line can always finish once it's flushed
+        int chunk = Math.max(channels, Math.min(ring.length, sourceDataLine.getBufferSize() / 4) / channels * channels);
+        byte[] bytes = new byte[chunk * 2];
+
+        // the line starts out empty and is emptied on purpose by a discard, neither of those is an underrun
+        boolean lineFilled = false;
+
+        while (!closed){
+            if (discardRequested){
+                readPosition = writePosition;
+                sourceDataLine.flush();
+                lineFilled = false;
+                discardRequested = false;
+                LockSupport.unpark(writerThread);
+                continue;
+            }
+
+            int available = (int) (writePosition - readPosition);
+            if (available == 0){
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+
+            // 16 bit little endian samples
+            int count = Math.min(available, chunk);
+            int start = (int) (readPosition & ringMask);
+            for (int i = 0; i < count; i++){
+                short sample = ring[(start + i) & ringMask];
+                bytes[i * 2] = (byte) sample;
+                bytes[i * 2 + 1] = (byte) (sample >>> 8);
+            }
+
+            // a running line with nothing left in it has gone silent
+            if (lineFilled && !paused && sourceDataLine.available() >= sourceDataLine.getBufferSize()){
+                underrun(available);
+            }
+            lineFilled = true;
+
+            // blocks while the line is full, which is what paces the output
+            sourceDataLine.write(bytes, 0, count * 2);
+
+            // the tap only copies, the analyzing happens on the analyzer's own thread
+            SpectrumAnalyzer analyzer = spectrumAnalyzer;
+            if (analyzer != null){
+                analyzer.tap(ring, ringMask, readPosition, count, channels, sampleRate,
+                        sourceDataLine.getBufferSize() / (2 * channels));
+            }
+            readPosition += count;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static void underrun(int bufferedSamples){
+        underruns.increment();
+        FlightRecorderEvents.Underrun event = new FlightRecorderEvents.Underrun();
+        if (event.shouldCommit()){
+            event.bufferedSamples = bufferedSamples;
+            event.commit();
+        }
+    }
+
+    // null stops the copying
+    public void setSpectrumAnalyzer(SpectrumAnalyzer spectrumAnalyzer){
+        this.spectrumAnalyzer = spectrumAnalyzer;
+    }
+
+    public void pause(){
+        paused = true;
+        if (line != null) line.stop();
+    }
+
+    public void resume(){
+        paused = false;
+        if (line != null) line.start();
+    }
+
+    // drops whatever is buffered but not played yet (used for seeking), has to be called from the thread that writes
+    public void discardBuffered(){
+        SourceDataLine sourceDataLine = line;
+        if (sourceDataLine == null) return;
+
+        discardRequested = true;
+        // makes room in case the output thread is stuck writing to a paused line
+        sourceDataLine.flush();
+        LockSupport.unpark(outputThread);
+        while (discardRequested && !closed){
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        writtenSampleFrames = sourceDataLine.getLongFramePosition();
+    }
+
+    // true if the given number of samples can be written without waiting for the output thread
+    public boolean hasRoomFor(int samples){
+        short[] ringBuffer = ring;
+        return ringBuffer == null || ringBuffer.length - (writePosition - readPosition) >= samples;
+    }
+
+    // true once the line has played everything that was written to the device
+    public boolean isDrained(){
+        return line == null || getPlayedSampleFrames() >= writtenSampleFrames;
+    }
+
+    @Override
+    protected void flushImpl() {
+        // wait until everything that was written has been played
+        while (!closed && line != null && writePosition != readPosition){
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        if (line != null) line.drain();
+    }
+
+    @Override
+    protected void closeImpl() {
+        closed = true;
+        LockSupport.unpark(outputThread);
+        if (line != null){
+            sampleFramesPlayedBeforeClose = line.getLongFramePosition();
+            line.close();
+        }
+    }
+
+    // number of sample frames the line has actually played
+    public long getPlayedSampleFrames(){
+        if (sampleFramesPlayedBeforeClose >= 0) return sampleFramesPlayedBeforeClose;
+        SourceDataLine sourceDataLine = line;
+        return sourceDataLine == null ? 0 : sourceDataLine.getLongFramePosition();
+    }
+
+    // number of sample frames that have been written to the device (some of them might not have been played yet)
+    public long getWrittenSampleFrames(){
+        return writtenSampleFrames;
+    }
+
+    // 0 until the first samples have been written
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    // milliseconds of audio that have been played so far
+    @Override
+    public int getPosition() {
+        int rate = sampleRate;
+        if (rate == 0) return 0;
+        return (int) (getPlayedSampleFrames() * 1000 / rate);
+    }
+}
@@ -0,0 +1,564 @@
+import javazoom.jl.decoder.JavaLayerException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//decodes songs with JLayer and plays them through a PlaybackAudioDevice
+//
+//all decoding happens on one long lived engine thread, the public methods only queue up commands for it
+//(so they never block the caller). the engine thread works through the commands in order in between frames and
+//drops commands that a later one makes pointless, e.g. a burst of seeks from scrubbing only does the last seek
+//
+//pausing stops the audio line (keeping whatever is buffered in it) and parks the engine thread, so resuming is instant.
+//while a song is playing the next song (see setNextSong()) gets opened and partly decoded in the background,
+//when the current song ends the engine keeps writing to the same audio line with the next song so there is no gap.
+//with a crossfade set the next song starts that long before the current one ends and the two get mixed (see
+//CrossfadeMixer), the listener hears about the next song as soon as the fade starts
+public class PlaybackEngine {
+
+    public interface Listener {
+        // the first frame of the song has been decoded
+        void playbackStarted();
+
+        // the song played to the end and there was no next song to move on to (not called when the engine gets stopped)
+        void playbackFinished(Song song);
+
+        // the song played to the end and the engine moved straight on to the next song
+        void playbackAdvanced(Song song);
+    }
+
+    //how much of the next song gets decoded ahead of time
+    private static final int PREDECODE_MS = 300;
+
+    //how often the engine checks if the line is done playing at the end of the last song
+    private static final int DRAIN_POLL_MS = 10;
+
+    //how often the engine checks for room in the audio device's buffer once it's full
+    private static final int FULL_POLL_MS = 5;
+
+    //longest crossfade that can be set
+    public static final int MAX_CROSSFADE_MS = 12000;
+
+    //a song started later than this after the previous one finished is not a transition but the user playing again
+    private static final long MAX_RESTART_GAP_NANOS = 5_000_000_000L;
+
+    private static final Metrics.Histogram frameDecodeTimes = Metrics.histogram("engine.frameDecode");
+    private static final Metrics.Histogram seekLatencies = Metrics.histogram("engine.seek");
+    private static final Metrics.Histogram gaplessTransitions = Metrics.histogram("engine.transition.gapless");
+    private static final Metrics.Histogram crossfadeTransitions = Metrics.histogram("engine.transition.crossfade");
+    private static final Metrics.Histogram restartTransitions = Metrics.histogram("engine.transition.restart");
+    private static final Metrics.Counter unpreparedTransitions = Metrics.counter("engine.transition.unprepared");
+
+    //opens and predecodes the next song while the current one is playing
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "playback-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // states of the engine thread
+    private static final int STOPPED = 0;
+    private static final int PLAYING = 1;
+    private static final int PAUSED = 2;
+    // the last song has been decoded, waiting for the line to play what's left
+    private static final int DRAINING = 3;
+
+    //a request for the engine thread
+    private static class Command {
+        static final int PLAY = 0;
+        static final int SEEK = 1;
+        static final int PAUSE = 2;
+        static final int RESUME = 3;
+        static final int STOP = 4;
+
+        final int type;
+        final Song song;
+        final int frame;
+
+        //when the command was given, for the seek latency
+        final long createdNanos = System.nanoTime();
+
+        Command(int type, Song song, int frame) {
+            this.type = type;
+            this.song = song;
+            this.frame = frame;
+        }
+    }
+
+    private final Listener listener;
+    private final LinkedBlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+    private final Object nextSongLock = new Object();
+
+    // only touched by the engine thread (volatile so the playback position can be read from anywhere)
+    private volatile TrackDecoder currentTrack;
+    private volatile PlaybackAudioDevice audioDevice;
+    private volatile int state = STOPPED;
+    private boolean started;
+
+    //sample frame of the audio line where the current track starts (changes when seeking or moving on to the next song)
+    private volatile long trackStartSampleFrame;
+
+    //the song to play after the current one and its decoder once it has been prepared
+    private Song nextSong;
+    private TrackDecoder preparedNextTrack;
+
+    //song that was last started (kept around so that it can be reported if opening it fails)
+    private Song currentSong;
+
+    //flag to indicate that the current song has been decoded to the end (so resuming goes back to draining)
+    private boolean trackDecoded;
+
+    //when the last seek was asked for and where to, the time is 0 once its first frame has been written
+    private long seekRequestNanos;
+    private int seekFrame;
+
+    //when and which song last played to the end, for the gap until the next song starts on a new line
+    private long finishedNanos;
+    private Song finishedSong;
+
+    //flag to indicate if the last track takeNextTrack() returned had been prepared in the background
+    private boolean nextTrackPrepared;
+
+    //how long consecutive songs overlap, 0 plays them back to back
+    private volatile int crossfadeMillis = Math.max(0, Math.min(MAX_CROSSFADE_MS, Integer.getInteger("jamp.crossfadeMs", 0)));
+
+    //which replay gain gets applied to the songs
+    private volatile ReplayGain.Mode replayGainMode = ReplayGain.Mode.valueOf(
+            System.getProperty("jamp.replayGain", "track").toUpperCase(Locale.ROOT));
+
+    //-Djamp.audioOutput=null decodes as fast as possible without playing anything (see NullAudioDevice)
+    private final boolean nullOutput = "null".equalsIgnoreCase(System.getProperty("jamp.audioOutput", "line"));
+
+    //gets what the audio device plays, null without a visualizer
+    private volatile SpectrumAnalyzer spectrumAnalyzer;
+
+    //mixes the end of the previous song into the current one while a crossfade is going on
+    private final CrossfadeMixer crossfadeMixer = new CrossfadeMixer();
+
+    public PlaybackEngine(Listener listener) {
+        this.listener = listener;
+
+        Thread engineThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runEngine();
+            }
+        }, "playback-engine");
+        engineThread.setDaemon(true);
+        engineThread.setPriority(Thread.MAX_PRIORITY);
+        engineThread.start();
+    }
+
+    // stops whatever is playing and starts playing the song from the given frame
+    public void play(Song song, int startFrame){
+        commands.add(new Command(Command.PLAY, song, startFrame));
+    }
+
+    // jumps to the frame if the song is already open, otherwise it's the same as play() (but keeps a paused engine paused)
+    public void seek(Song song, int frame){
+        commands.add(new Command(Command.SEEK, song, frame));
+    }
+
+    public void pause(){
+
+        // stop the line right away, the engine thread only gets to the command after the frame it's on
+        PlaybackAudioDevice device = audioDevice;
+        if (device != null) device.pause();
+        commands.add(new Command(Command.PAUSE, null, 0));
+    }
+
+    public void resume(){
+        commands.add(new Command(Command.RESUME, null, 0));
+    }
+
+    public void stop(){
+
+        // silence the line right away
+        PlaybackAudioDevice device = audioDevice;
+        if (device != null) device.close();
+        commands.add(new Command(Command.STOP, null, 0));
+    }
+
+    // the song to move on to once the current one ends (null if playback should stop)
+    public void setNextSong(final Song song){
+        synchronized (nextSongLock){
+            if (song == nextSong) return;
+            nextSong = song;
+            if (preparedNextTrack != null){
+                preparedNextTrack.close();
+                preparedNextTrack = null;
+            }
+            if (song == null) return;
+        }
+
+        // open and decode the start of the next song in the background
+        prefetcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (nextSongLock){
+                    if (nextSong != song) return;
+                }
+                TrackDecoder nextTrack = null;
+                try{
+                    // a lazily loaded song without a frame count in its header gets the real one before it becomes
+                    // current, so the slider starts out with it
+                    if (!song.isFrameCountExact()) song.scanFrames();
+
+                    nextTrack = new TrackDecoder(song, 0);
+                    applyReplayGain(nextTrack);
+                    nextTrack.predecode(PREDECODE_MS);
+                } catch (Exception | InternalError e){
+                    e.printStackTrace();
+                    if (nextTrack != null) nextTrack.close();
+                    return;
+                }
+                synchronized (nextSongLock){
+                    if (nextSong == song && preparedNextTrack == null){
+                        preparedNextTrack = nextTrack;
+                    } else{
+                        nextTrack.close();
+                    }
+                }
+            }
+        });
+    }
+
+    public int getCrossfadeMillis() {
+        return crossfadeMillis;
+    }
+
+    // takes effect from the next song change on
+    public void setCrossfadeMillis(int crossfadeMillis) {
+        this.crossfadeMillis = Math.max(0, Math.min(MAX_CROSSFADE_MS, crossfadeMillis));
+    }
+
+    public ReplayGain.Mode getReplayGainMode() {
+        return replayGainMode;
+    }
+
+    // changes the level of the current song right away (after what's already buffered)
+    public void setReplayGainMode(ReplayGain.Mode replayGainMode) {
+        this.replayGainMode = replayGainMode;
+        TrackDecoder track = currentTrack;
+        if (track != null) applyReplayGain(track);
+    }
+
+    // the analyzer gets what the audio device plays from now on, null stops it
+    public void setSpectrumAnalyzer(SpectrumAnalyzer spectrumAnalyzer) {
+        this.spectrumAnalyzer = spectrumAnalyzer;
+        PlaybackAudioDevice device = audioDevice;
+        if (device != null) device.setSpectrumAnalyzer(spectrumAnalyzer);
+    }
+
+    private void applyReplayGain(TrackDecoder track){
+        ReplayGain replayGain = track.getSong().getReplayGain();
+        track.setGain(replayGain == null ? 1 : replayGain.getLinearGain(replayGainMode));
+    }
+
+    // how many ms into the current song we are, based on what the audio device has actually played
+    public int getPositionInMilli(){
+        PlaybackAudioDevice device = audioDevice;
+        TrackDecoder track = currentTrack;
+        if (track == null) return 0;
+        if (device == null || device.getSampleRate() == 0) return track.getStartInMilli();
+
+        long playedInTrack = Math.max(0, device.getPlayedSampleFrames() - trackStartSampleFrame);
+        return track.getStartInMilli() + (int) (playedInTrack * 1000 / device.getSampleRate());
+    }
+
+    private void runEngine(){
+        List<Command> batch = new ArrayList<>();
+        while (true){
+            try{
+                // wait for something to do unless there's audio to decode
+                batch.clear();
+                if (state == STOPPED || state == PAUSED){
+                    batch.add(commands.take());
+                } else if (state == DRAINING){
+                    Command command = commands.poll(DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (command != null) batch.add(command);
+                } else if (!audioDevice.hasRoomFor(TrackDecoder.MAX_FRAME_SAMPLES)){
+                    // the device is full, wait for commands instead of blocking in write() so they still get handled
+                    Command command = commands.poll(FULL_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (command != null) batch.add(command);
+                }
+                commands.drainTo(batch);
+
+                if (!batch.isEmpty()){
+                    dropOutdatedCommands(batch);
+                    for (Command command : batch) handleCommand(command);
+                }
+
+                if (state == PLAYING && audioDevice.hasRoomFor(TrackDecoder.MAX_FRAME_SAMPLES)){
+                    decodeFrame();
+                } else if (state == DRAINING && audioDevice.isDrained()){
+                    finishPlayback();
+                }
+            } catch (InterruptedException e){
+                return;
+            } catch (Exception | InternalError e){
+                // a broken file shouldn't take the engine thread down with it (reading a mapped file that got
+                // truncated or whose drive went away throws an InternalError, not an IOException)
+                e.printStackTrace();
+                if (state != STOPPED) finishPlayback();
+            }
+        }
+    }
+
+    // a seek or play is pointless if a later command replaces the song or position anyway
+    private static void dropOutdatedCommands(List<Command> batch){
+        boolean replacedLater = false;
+        boolean stoppedLater = false;
+        for (int i = batch.size() - 1; i >= 0; i--){
+            Command command = batch.get(i);
+            switch (command.type){
+                case Command.PLAY:
+                case Command.SEEK:
+                    if (replacedLater || stoppedLater) batch.remove(i);
+                    replacedLater = true;
+                    break;
+                case Command.STOP:
+                    stoppedLater = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void handleCommand(Command command) throws IOException, JavaLayerException {
+        switch (command.type){
+            case Command.PLAY:
+                startPlaying(command.song, command.frame);
+                break;
+            case Command.SEEK:
+                if (state != STOPPED && currentTrack != null && currentTrack.getSong() == command.song){
+                    seekTo(command.frame);
+                } else{
+                    startPlaying(command.song, command.frame);
+                }
+                // a paused seek only gets its first frame once resumed, that wait isn't seek latency
+                if (state == PLAYING){
+                    seekRequestNanos = command.createdNanos;
+                    seekFrame = command.frame;
+                }
+                break;
+            case Command.PAUSE:
+                if (state == PLAYING || state == DRAINING){
+                    audioDevice.pause();
+                    state = PAUSED;
+                }
+                break;
+            case Command.RESUME:
+                if (state == PAUSED){
+                    audioDevice.resume();
+                    state = trackDecoded ? DRAINING : PLAYING;
+                }
+                break;
+            case Command.STOP:
+                closeAll();
+                state = STOPPED;
+                finishedNanos = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startPlaying(Song song, int startFrame) throws IOException, JavaLayerException {
+        closeAll();
+        currentSong = song;
+        trackDecoded = false;
+
+        currentTrack = new TrackDecoder(song, startFrame);
+        applyReplayGain(currentTrack);
+        trackStartSampleFrame = 0;
+        audioDevice = nullOutput ? new NullAudioDevice() : new PlaybackAudioDevice();
+        audioDevice.setSpectrumAnalyzer(spectrumAnalyzer);
+        audioDevice.open(currentTrack.getDecoder());
+        started = false;
+        state = PLAYING;
+    }
+
+    // reopens the current song at the frame but keeps the audio line
+    private void seekTo(int frame) throws IOException, JavaLayerException {
+        // seeking ends a crossfade, the previous song just stops
+        crossfadeMixer.cancel();
+
+        TrackDecoder track = new TrackDecoder(currentTrack.getSong(), frame);
+        applyReplayGain(track);
+        currentTrack.close();
+        currentTrack = track;
+
+        // throw away the audio from before the seek
+        audioDevice.discardBuffered();
+        trackStartSampleFrame = audioDevice.getWrittenSampleFrames();
+        trackDecoded = false;
+        if (state == DRAINING) state = PLAYING;
+    }
+
+    private void decodeFrame() throws IOException, JavaLayerException {
+        if (crossfadeMixer.isActive()){
+            // the previous song is still fading out
+            int length = crossfadeMixer.mix();
+            if (length >= 0){
+                audioDevice.write(crossfadeMixer.getBuffer(), 0, length);
+                return;
+            }
+        } else if (crossfadeMillis > 0 && currentTrack.getSampleRate() > 0){
+            // start fading into the next song once the current one is within the crossfade of its end
+            long crossfadeFrames = (long) currentTrack.getSampleRate() * crossfadeMillis / 1000;
+            long remainingFrames = currentTrack.getRemainingSampleFrames();
+            if (remainingFrames <= crossfadeFrames){
+                long switchStart = System.nanoTime();
+                TrackDecoder nextTrack = takeNextTrack();
+                if (nextTrack != null){
+                    Song previousSong = currentSong;
+                    crossfadeMixer.start(currentTrack, nextTrack, remainingFrames);
+                    advanceTo(nextTrack, false);
+                    recordTransition("crossfade", crossfadeTransitions, previousSong, nextTrackPrepared,
+                            System.nanoTime() - switchStart);
+                    return;
+                }
+            }
+        }
+
+        long decodeStart = System.nanoTime();
+        FlightRecorderEvents.FrameDecode event = new FlightRecorderEvents.FrameDecode();
+        event.begin();
+        int length = currentTrack.decodeFrame();
+        if (length < 0){
+            // end of the song, keep going with the next one on the same line if we can
+            TrackDecoder nextTrack = takeNextTrack();
+            if (nextTrack != null){
+                Song previousSong = currentSong;
+                advanceTo(nextTrack, true);
+                recordTransition("gapless", gaplessTransitions, previousSong, nextTrackPrepared,
+                        System.nanoTime() - decodeStart);
+                return;
+            }
+
+            // let the line play what it still has
+            trackDecoded = true;
+            state = DRAINING;
+            return;
+        }
+
+        frameDecodeTimes.record(System.nanoTime() - decodeStart);
+        event.end();
+        if (event.shouldCommit()){
+            event.filePath = currentSong.getFilePath();
+            event.commit();
+        }
+
+        // only called when the device has room, so this never has to wait on the output thread
+        if (!started) audioDevice.setFormat(currentTrack.getSampleRate(), currentTrack.getChannels());
+        audioDevice.write(currentTrack.getBuffer(), currentTrack.getOffset(), length);
+
+        if (seekRequestNanos != 0) seekDone();
+        if (!started){
+            started = true;
+            long gap = System.nanoTime() - finishedNanos;
+            if (finishedNanos != 0 && gap < MAX_RESTART_GAP_NANOS){
+                recordTransition("restart", restartTransitions, finishedSong, false, gap);
+            }
+            finishedNanos = 0;
+            finishedSong = null;
+            listener.playbackStarted();
+        }
+    }
+
+    // the first audio from the new position has been written
+    private void seekDone(){
+        long latency = System.nanoTime() - seekRequestNanos;
+        seekRequestNanos = 0;
+        seekLatencies.record(latency);
+
+        FlightRecorderEvents.Seek event = new FlightRecorderEvents.Seek();
+        if (event.shouldCommit()){
+            event.filePath = currentSong.getFilePath();
+            event.frame = seekFrame;
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    private void recordTransition(String kind, Metrics.Histogram histogram, Song from, boolean prepared, long gap){
+        histogram.record(gap);
+        if (!prepared) unpreparedTransitions.increment();
+
+        FlightRecorderEvents.TrackTransition event = new FlightRecorderEvents.TrackTransition();
+        if (event.shouldCommit()){
+            event.kind = kind;
+            event.fromFilePath = from == null ? null : from.getFilePath();
+            event.toFilePath = currentSong.getFilePath();
+            event.prepared = prepared;
+            event.gap = gap;
+            event.commit();
+        }
+    }
+
+    // makes the next track the current one, the previous one is either closed or left to the crossfade mixer
+    private void advanceTo(TrackDecoder nextTrack, boolean closePrevious){
+        if (closePrevious) currentTrack.close();
+        currentTrack = nextTrack;
+        currentSong = nextTrack.getSong();
+        trackStartSampleFrame = audioDevice.getWrittenSampleFrames();
+        listener.playbackAdvanced(nextTrack.getSong());
+    }
+
+    private void finishPlayback(){
+        closeAll();
+        state = STOPPED;
+        finishedNanos = System.nanoTime();
+        finishedSong = currentSong;
+        listener.playbackFinished(currentSong);
+    }
+
+    private void closeAll(){
+        crossfadeMixer.cancel();
+        if (audioDevice != null) audioDevice.close();
+        if (currentTrack != null){
+            currentTrack.close();
+            currentTrack = null;
+        }
+    }
+
+    // returns the decoder of the next song if it can be played on the current audio line, null otherwise
+    private TrackDecoder takeNextTrack() throws IOException, JavaLayerException {
+        TrackDecoder nextTrack;
+        Song song;
+        synchronized (nextSongLock){
+            song = nextSong;
+            nextTrack = preparedNextTrack;
+            preparedNextTrack = null;
+            nextSong = null;
+        }
+        if (song == null) return null;
+
+        nextTrackPrepared = nextTrack != null;
+        if (nextTrack == null){
+            // it wasn't ready in time, open it here (still no gap in the audio line, just less buffered)
+            nextTrack = new TrackDecoder(song, 0);
+            applyReplayGain(nextTrack);
+            nextTrack.predecode(PREDECODE_MS);
+        }
+
+        // a song with a different format needs a new line, let the listener start it from scratch
+        if (nextTrack.getSampleRate() != currentTrack.getSampleRate() || nextTrack.getChannels() != currentTrack.getChannels()){
+            nextTrack.close();
+            return null;
+        }
+        return nextTrack;
+    }
+}
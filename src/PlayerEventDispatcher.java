@@ -0,0 +1,85 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+//hands the music player's events to a listener on another thread (the EDT for the gui)
+//
+//the events are all "this is the state now" so only the latest one of each kind matters. each kind has one slot that
+//an event simply overwrites, and the first event after a delivery schedules one task that delivers whatever is in the
+//slots at that point. however many events come in (e.g. position updates while the EDT is busy) the listener's
+//thread only ever has one task queued, and the events can be sent from any thread without locking
+public class PlayerEventDispatcher implements MusicPlayer.Listener {
+
+    //marks an empty slot
+    private static final Object NO_SONG = new Object();
+    private static final int NO_VALUE = Integer.MIN_VALUE;
+
+    private final MusicPlayer.Listener listener;
+    private final Executor executor;
+
+    private final AtomicReference<Object> pendingSong = new AtomicReference<>(NO_SONG);
+    private final AtomicInteger pendingPlaying = new AtomicInteger(NO_VALUE);
+    private final AtomicInteger pendingPosition = new AtomicInteger(NO_VALUE);
+    private final AtomicInteger pendingProgress = new AtomicInteger(NO_VALUE);
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    // the listener gets called on whatever thread the executor runs its tasks on
+    public PlayerEventDispatcher(MusicPlayer.Listener listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    @Override
+    public void songChanged(Song song) {
+        pendingSong.set(song);
+        scheduleDelivery();
+    }
+
+    @Override
+    public void playingChanged(boolean playing) {
+        pendingPlaying.set(playing ? 1 : 0);
+        scheduleDelivery();
+    }
+
+    @Override
+    public void positionChanged(int frame) {
+        pendingPosition.set(frame);
+        scheduleDelivery();
+    }
+
+    @Override
+    public void playlistLoadProgressChanged(int percent) {
+        pendingProgress.set(percent);
+        scheduleDelivery();
+    }
+
+    private void scheduleDelivery(){
+        if (deliveryScheduled.compareAndSet(false, true)) executor.execute(delivery);
+    }
+
+    private void deliver(){
+        // cleared first so that an event that comes in while delivering schedules another delivery
+        deliveryScheduled.set(false);
+
+        // the song goes first so the position that follows belongs to it
+        Object song = pendingSong.getAndSet(NO_SONG);
+        if (song != NO_SONG) listener.songChanged((Song) song);
+
+        int playing = pendingPlaying.getAndSet(NO_VALUE);
+        if (playing != NO_VALUE) listener.playingChanged(playing == 1);
+
+        int position = pendingPosition.getAndSet(NO_VALUE);
+        if (position != NO_VALUE) listener.positionChanged(position);
+
+        int progress = pendingProgress.getAndSet(NO_VALUE);
+        if (progress != NO_VALUE) listener.playlistLoadProgressChanged(progress);
+    }
+}
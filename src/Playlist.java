@@ -0,0 +1,40 @@
+import java.util.Arrays;
+
+//the tracks of a playlist as ids into the LibraryTable, 4 bytes per track no matter how big the playlist gets
+public class Playlist {
+
+    private final LibraryTable libraryTable;
+    private int[] trackIds = new int[256];
+    private int size;
+
+    public Playlist(LibraryTable libraryTable) {
+        this.libraryTable = libraryTable;
+    }
+
+    public void add(int trackId){
+        if (size == trackIds.length) trackIds = Arrays.copyOf(trackIds, size * 2);
+        trackIds[size++] = trackId;
+    }
+
+    public int getTrackId(int index){
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return trackIds[index];
+    }
+
+    // makes a Song for the track at the index (only done for the tracks that are about to be played)
+    public Song materialize(int index){
+        return libraryTable.materialize(getTrackId(index));
+    }
+
+    public LibraryTable getLibraryTable() {
+        return libraryTable;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+}
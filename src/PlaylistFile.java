@@ -0,0 +1,47 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+//binary playlist (.jpl) that carries the metadata of every track, so loading it doesn't have to parse the mp3s again
+//(as long as their size and last modified time still match)
+//
+//file layout: [magic int][version int] followed by one record per track as [record length int][record bytes],
+//the records are the same as in the metadata cache. there is no track count up front so the file can be written
+//and read as a stream, a reader can hand out the first track right after reading the header
+public class PlaylistFile {
+
+    static final int MAGIC = 0x4A504C31; // "JPL1"
+    static final int VERSION = 1;
+
+    public static final String EXTENSION = "jpl";
+
+    public static boolean isBinaryPlaylist(File file){
+        return file.getName().toLowerCase(Locale.ROOT).endsWith("." + EXTENSION);
+    }
+
+    //writes tracks one at a time
+    public static class Writer implements Closeable {
+        private final DataOutputStream outputStream;
+
+        public Writer(File file) throws IOException {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+        }
+
+        public void write(SongMetadataCache.Entry song) throws IOException {
+            ByteBuffer record = SongMetadataCache.encode(song);
+            outputStream.write(record.array(), record.position(), record.remaining());
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import javax.swing.*;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//loads the songs of a playlist in the background so that the gui stays responsive
+//the playlist can be a .jpl (see PlaylistFile), .txt, .m3u/.m3u8 or .pls file (see PlaylistReader)
+//songs get parsed in parallel but are handed to the music player in playlist order
+//only their metadata is handed over, the music player keeps the playlist as ids into the LibraryTable
+public class PlaylistLoader extends SwingWorker<Integer, SongMetadataCache.Entry> {
+
+    //how many songs each worker thread is allowed to have queued up ahead of the player
+    private static final int SONGS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final Metrics.Histogram loadTimes = Metrics.histogram("playlist.load");
+    private static final Metrics.Counter loadedSongs = Metrics.counter("playlist.load.songs");
+
+    private final File playlistFile;
+    private final MusicPlayer musicPlayer;
+
+    public PlaylistLoader(File playlistFile, MusicPlayer musicPlayer) {
+        this.playlistFile = playlistFile;
+        this.musicPlayer = musicPlayer;
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        long startTime = System.nanoTime();
+        FlightRecorderEvents.PlaylistLoad event = new FlightRecorderEvents.PlaylistLoad();
+        event.begin();
+
+        // bounded pool so a big playlist doesn't spawn a thread per song
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "playlist-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        int loaded = 0;
+        // the playlist file is read as the songs are needed so the first song can start before the whole file is read
+        try (PlaylistReader playlistReader = PlaylistReader.open(playlistFile)) {
+            // keep a window of pending songs so that we don't parse the whole playlist into memory ahead of time
+            ArrayDeque<Future<SongMetadataCache.Entry>> pending = new ArrayDeque<>();
+            int maxInFlight = threadCount * SONGS_IN_FLIGHT_PER_THREAD;
+            boolean endOfPlaylist = false;
+
+            while (!endOfPlaylist || !pending.isEmpty()) {
+                if (isCancelled()) break;
+
+                // top up the window
+                while (!endOfPlaylist && pending.size() < maxInFlight) {
+                    final PlaylistReader.Track track = playlistReader.next();
+                    if (track == null) {
+                        endOfPlaylist = true;
+                    } else {
+                        pending.add(workers.submit(() -> readMetadata(track)));
+                    }
+                }
+                if (pending.isEmpty()) break;
+
+                // wait on the oldest song so that songs are published in playlist order
+                SongMetadataCache.Entry song = pending.poll().get();
+                loaded++;
+
+                // skip songs that could not be read
+                if (song != null) publish(song);
+
+                setProgress(endOfPlaylist ? 100 : playlistReader.getProgress());
+            }
+        } finally {
+            workers.shutdownNow();
+
+            loadTimes.record(System.nanoTime() - startTime);
+            loadedSongs.add(loaded);
+            event.end();
+            if (event.shouldCommit()) {
+                event.playlistPath = playlistFile.getPath();
+                event.songs = loaded;
+                event.cancelled = isCancelled();
+                event.commit();
+            }
+        }
+        return loaded;
+    }
+
+    // uses the metadata stored in the playlist if the file hasn't changed since, otherwise the song gets parsed
+    private static SongMetadataCache.Entry readMetadata(PlaylistReader.Track track){
+        SongMetadataCache.Entry metadata = track.getMetadata();
+        if (metadata != null){
+            File file = new File(track.getFilePath());
+            if (metadata.matches(file.length(), file.lastModified())){
+                // also put it in the metadata cache so that playing the song doesn't parse it either
+                SongMetadataCache metadataCache = SongMetadataCache.getInstance();
+                if (metadataCache.lookup(file) == null) metadataCache.store(metadata);
+                return metadata;
+            }
+        }
+        return Song.readMetadata(track.getFilePath());
+    }
+
+    @Override
+    protected void process(List<SongMetadataCache.Entry> songs) {
+        // runs on the EDT
+        if (!isCancelled()) musicPlayer.addToPlaylist(this, songs);
+    }
+
+    @Override
+    protected void done() {
+        // runs on the EDT
+        if (isCancelled()) return;
+        try {
+            get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        musicPlayer.playlistLoadFinished(this);
+    }
+}
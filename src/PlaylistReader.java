@@ -0,0 +1,197 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+//reads the tracks of a playlist one at a time, so the first track can be played before the rest of the file is read
+//
+//supports the binary .jpl format (see PlaylistFile) as well as plain .txt (one path per line), .m3u/.m3u8
+//(comment lines start with #) and .pls (File1=...). relative paths are taken relative to the playlist's folder
+public abstract class PlaylistReader implements Closeable {
+
+    //a track of the playlist, metadata is only there if the playlist format carries it
+    public static class Track {
+        private final String filePath;
+        private final SongMetadataCache.Entry metadata;
+
+        Track(String filePath, SongMetadataCache.Entry metadata) {
+            this.filePath = filePath;
+            this.metadata = metadata;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        // null if the playlist only had the path
+        public SongMetadataCache.Entry getMetadata() {
+            return metadata;
+        }
+    }
+
+    private final CountingInputStream inputStream;
+    private final long fileLength;
+    protected final File folder;
+
+    protected PlaylistReader(File playlistFile) throws IOException {
+        inputStream = new CountingInputStream(new FileInputStream(playlistFile));
+        fileLength = playlistFile.length();
+        folder = playlistFile.getAbsoluteFile().getParentFile();
+    }
+
+    public static PlaylistReader open(File playlistFile) throws IOException {
+        String name = playlistFile.getName().toLowerCase(Locale.ROOT);
+        if (PlaylistFile.isBinaryPlaylist(playlistFile)) return new BinaryReader(playlistFile);
+        if (name.endsWith(".pls")) return new PlsReader(playlistFile);
+        if (name.endsWith(".m3u8")) return new TextReader(playlistFile, StandardCharsets.UTF_8);
+        return new TextReader(playlistFile, Charset.defaultCharset());
+    }
+
+    // the next track or null at the end of the playlist
+    public abstract Track next() throws IOException;
+
+    // how much of the file has been read so far (0 to 100)
+    public int getProgress(){
+        if (fileLength == 0) return 100;
+        return (int) Math.min(100, inputStream.count * 100 / fileLength);
+    }
+
+    protected InputStream getInputStream() {
+        return inputStream;
+    }
+
+    protected String resolve(String path){
+        File file = new File(path);
+        if (!file.isAbsolute() && folder != null) file = new File(folder, path);
+        return file.getPath();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private static class BinaryReader extends PlaylistReader {
+        private final DataInputStream dataInputStream;
+
+        BinaryReader(File playlistFile) throws IOException {
+            super(playlistFile);
+            dataInputStream = new DataInputStream(new BufferedInputStream(getInputStream()));
+            try{
+                if (dataInputStream.readInt() != PlaylistFile.MAGIC || dataInputStream.readInt() != PlaylistFile.VERSION){
+                    throw new IOException("Not a playlist file (or made by a newer version): " + playlistFile);
+                }
+            } catch (IOException e){
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Track next() throws IOException {
+            byte[] record;
+            try{
+                int recordLength = dataInputStream.readInt();
+                if (recordLength <= 0) return null;
+                record = new byte[recordLength];
+                dataInputStream.readFully(record);
+            } catch (EOFException e){
+                // end of the file (or a record that was only partly written)
+                return null;
+            }
+
+            SongMetadataCache.Entry metadata = SongMetadataCache.decode(ByteBuffer.wrap(record));
+            return new Track(metadata.getFilePath(), metadata);
+        }
+    }
+
+    private static class TextReader extends PlaylistReader {
+        private final BufferedReader bufferedReader;
+
+        TextReader(File playlistFile, Charset charset) throws IOException {
+            super(playlistFile);
+            bufferedReader = new BufferedReader(new InputStreamReader(getInputStream(), charset));
+        }
+
+        @Override
+        public Track next() throws IOException {
+            String line;
+            while ((line = bufferedReader.readLine()) != null){
+                // m3u8 files can start with a byte order mark
+                if (line.startsWith("\uFEFF")) line = line.substring(1);
+                line = line.strip();
+
+                // blank lines and m3u comments/directives (#EXTM3U, #EXTINF...)
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                return new Track(resolve(line), null);
+            }
+            return null;
+        }
+    }
+
+    private static class PlsReader extends PlaylistReader {
+        private final BufferedReader bufferedReader;
+
+        PlsReader(File playlistFile) throws IOException {
+            super(playlistFile);
+            bufferedReader = new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Track next() throws IOException {
+            String line;
+            while ((line = bufferedReader.readLine()) != null){
+                // File1=path, everything else ([playlist], Title1=, Length1=, NumberOfEntries=...) is skipped
+                line = line.strip();
+                if (!line.regionMatches(true, 0, "File", 0, 4)) continue;
+                int equals = line.indexOf('=');
+                if (equals < 0) continue;
+                String path = line.substring(equals + 1).strip();
+                if (path.startsWith("file://")) path = path.substring("file://".length());
+                if (!path.isEmpty()) return new Track(resolve(path), null);
+            }
+            return null;
+        }
+    }
+
+    //keeps track of how many bytes have been read so progress can be reported without knowing the track count
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) count++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.TagField;
+import org.jaudiotagger.tag.id3.AbstractID3v2Frame;
+import org.jaudiotagger.tag.id3.framebody.FrameBodyTXXX;
+
+import java.util.Locale;
+
+//how much a song has to be turned up or down to play at the same loudness as every other song
+//(ReplayGain 2.0, which targets -18 LUFS), either measured by the LoudnessAnalyzer or read from the song's tags.
+//album gain keeps the differences between the songs of an album and is NaN if it isn't known
+public class ReplayGain {
+
+    //loudness every song gets brought to
+    public static final double REFERENCE_LOUDNESS = -18;
+
+    public enum Mode {
+        OFF,
+        TRACK,
+        // falls back to the track gain for songs that don't have an album gain
+        ALBUM
+    }
+
+    private final float trackGain;
+    private final float trackPeak;
+    private final float albumGain;
+    private final float albumPeak;
+
+    // gains in dB, peaks as a fraction of full scale
+    public ReplayGain(float trackGain, float trackPeak, float albumGain, float albumPeak) {
+        this.trackGain = trackGain;
+        this.trackPeak = trackPeak;
+        this.albumGain = albumGain;
+        this.albumPeak = albumPeak;
+    }
+
+    public static float gainFor(double loudness){
+        return (float) (REFERENCE_LOUDNESS - loudness);
+    }
+
+    // reads the REPLAYGAIN_* user text frames of an id3v2 tag, null if there are none
+    public static ReplayGain fromTag(Tag tag){
+        float trackGain = Float.NaN;
+        float trackPeak = Float.NaN;
+        float albumGain = Float.NaN;
+        float albumPeak = Float.NaN;
+        try{
+            for (TagField field : tag.getFields("TXXX")){
+                if (!(field instanceof AbstractID3v2Frame)) continue;
+                if (!(((AbstractID3v2Frame) field).getBody() instanceof FrameBodyTXXX)) continue;
+                FrameBodyTXXX body = (FrameBodyTXXX) ((AbstractID3v2Frame) field).getBody();
+                String description = body.getDescription().toUpperCase(Locale.ROOT);
+                float value = parse(body.getFirstTextValue());
+                switch (description){
+                    case "REPLAYGAIN_TRACK_GAIN": trackGain = value; break;
+                    case "REPLAYGAIN_TRACK_PEAK": trackPeak = value; break;
+                    case "REPLAYGAIN_ALBUM_GAIN": albumGain = value; break;
+                    case "REPLAYGAIN_ALBUM_PEAK": albumPeak = value; break;
+                    default: break;
+                }
+            }
+        } catch (Exception e){
+            // not an id3v2 tag (or a broken frame), the song just gets analyzed
+            return null;
+        }
+        if (Float.isNaN(trackGain)) return null;
+        return new ReplayGain(trackGain, trackPeak, albumGain, albumPeak);
+    }
+
+    // "-6.54 dB" or "0.988"
+    private static float parse(String text){
+        if (text == null) return Float.NaN;
+        text = text.trim();
+        if (text.regionMatches(true, Math.max(0, text.length() - 2), "dB", 0, 2)) text = text.substring(0, text.length() - 2).trim();
+        try{
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e){
+            return Float.NaN;
+        }
+    }
+
+    // the factor to multiply the samples with, held back so that the peak doesn't clip
+    public float getLinearGain(Mode mode){
+        if (mode == Mode.OFF) return 1;
+        boolean album = mode == Mode.ALBUM && !Float.isNaN(albumGain);
+        float gain = album ? albumGain : trackGain;
+        float peak = album ? albumPeak : trackPeak;
+        double linear = Math.pow(10, gain / 20.0);
+        if (peak > 0) linear = Math.min(linear, 1 / peak);
+        return (float) linear;
+    }
+
+    public boolean hasAlbumGain(){
+        return !Float.isNaN(albumGain);
+    }
+
+    // getters
+    public float getTrackGain() {
+        return trackGain;
+    }
+
+    public float getTrackPeak() {
+        return trackPeak;
+    }
+
+    public float getAlbumGain() {
+        return albumGain;
+    }
+
+    public float getAlbumPeak() {
+        return albumPeak;
+    }
+}
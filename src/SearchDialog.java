@@ -0,0 +1,146 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+//search-as-you-type over the library, double clicking a result (or pressing enter) plays it
+public class SearchDialog extends JDialog {
+
+    //how many results get listed
+    private static final int MAX_RESULTS = 200;
+
+    private MusicPlayerGUI musicPlayerGUI;
+    private SearchIndex searchIndex;
+
+    private JTextField searchField;
+    private DefaultListModel<SongMetadataCache.Entry> results;
+    private JList<SongMetadataCache.Entry> resultList;
+    private JLabel statusLabel;
+
+    public SearchDialog(MusicPlayerGUI musicPlayerGUI) {
+        this.musicPlayerGUI = musicPlayerGUI;
+
+        //configure dialog
+        setTitle("Search Library");
+        setSize(400, 400);
+        setResizable(false);
+        getContentPane().setBackground(MusicPlayerGUI.FRAME_COLOR);
+        setLayout(null);
+        setLocationRelativeTo(musicPlayerGUI);
+
+        addDialogComponents();
+        loadSearchIndex();
+    }
+
+    private void addDialogComponents() {
+        searchField = new JTextField();
+        searchField.setBounds(10, 10, getWidth() - 35, 25);
+        searchField.setFont(new Font("Dialog", Font.PLAIN, 14));
+        searchField.setEnabled(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                runSearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                runSearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                runSearch();
+            }
+        });
+        searchField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // enter plays the selected (or first) result
+                if (resultList.getSelectedValue() == null && !results.isEmpty()) resultList.setSelectedIndex(0);
+                playSelected();
+            }
+        });
+        add(searchField);
+
+        results = new DefaultListModel<>();
+        resultList = new JList<>(results);
+        resultList.setFont(new Font("Dialog", Font.PLAIN, 12));
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                          boolean cellHasFocus) {
+                SongMetadataCache.Entry song = (SongMetadataCache.Entry) value;
+                String text = song.getSongTitle() + " - " + song.getSongArtist();
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) playSelected();
+            }
+        });
+        JScrollPane scrollPane = new JScrollPane(resultList);
+        scrollPane.setBounds(10, 45, getWidth() - 35, getHeight() - 110);
+        add(scrollPane);
+
+        statusLabel = new JLabel("Indexing library...");
+        statusLabel.setBounds(10, getHeight() - 60, getWidth() - 35, 20);
+        statusLabel.setFont(new Font("Dialog", Font.PLAIN, 12));
+        statusLabel.setForeground(MusicPlayerGUI.TEXT_COLOR);
+        add(statusLabel);
+    }
+
+    // (re)building the index takes a moment for a big library so it happens in the background
+    private void loadSearchIndex(){
+        new SwingWorker<SearchIndex, Void>() {
+            @Override
+            protected SearchIndex doInBackground() {
+                return MusicLibrary.getInstance().getSearchIndex();
+            }
+
+            @Override
+            protected void done() {
+                try{
+                    searchIndex = get();
+                    statusLabel.setText(searchIndex.size() + " songs");
+                    searchField.setEnabled(true);
+                    searchField.requestFocusInWindow();
+                    runSearch();
+                } catch (Exception e){
+                    e.printStackTrace();
+                    statusLabel.setText("Library could not be indexed");
+                }
+            }
+        }.execute();
+    }
+
+    // fast enough to run on every key stroke on the EDT
+    private void runSearch(){
+        if (searchIndex == null) return;
+
+        long startTime = System.nanoTime();
+        List<SongMetadataCache.Entry> matches = searchIndex.search(searchField.getText(), MAX_RESULTS);
+        long micros = (System.nanoTime() - startTime) / 1000;
+
+        results.clear();
+        results.addAll(matches);
+        if (!searchField.getText().isBlank()){
+            statusLabel.setText(matches.size() + (matches.size() == MAX_RESULTS ? "+" : "") + " results (" + micros + "us)");
+        } else{
+            statusLabel.setText(searchIndex.size() + " songs");
+        }
+    }
+
+    private void playSelected(){
+        SongMetadataCache.Entry selected = resultList.getSelectedValue();
+        if (selected == null) return;
+        musicPlayerGUI.loadSong(new Song(selected.getFilePath()));
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+//inverted index over the title, artist and file path of every song in the library, used for search-as-you-type
+//
+//songs are numbered 0..n-1 and everything is kept in primitive arrays:
+//- a sorted term dictionary, so an exact term is a binary search and a prefix is a range of terms
+//- one int array with the postings (song ids) of every term, termStarts[t]..termStarts[t + 1] are the songs of term t
+//- a sorted trigram table pointing at the terms that contain each trigram, used for substring search
+//a query is split into tokens and a song has to match every token (as a whole term, a prefix or a substring)
+public class SearchIndex {
+
+    //how many parent folders of a file get indexed (e.g. artist/album), the rest of the path matches too much
+    private static final int PATH_FOLDERS_INDEXED = 2;
+
+    //how much a match of each kind counts towards the ranking
+    private static final int EXACT_SCORE = 4;
+    private static final int PREFIX_SCORE = 2;
+    private static final int SUBSTRING_SCORE = 1;
+
+    private final SongMetadataCache.Entry[] songs;
+
+    private final String[] terms;
+    private final int[] termStarts;
+    private final int[] postings;
+
+    private final int[] trigrams;
+    private final int[] trigramStarts;
+    private final int[] trigramTerms;
+
+    //scratch space for queries (only one query runs at a time)
+    private final int[] matchedTokens;
+    private final int[] scores;
+    private int[] touched;
+
+    //songs that matched every token of the running query so far
+    private int completedCount;
+    private int queryTokenCount;
+
+    private SearchIndex(SongMetadataCache.Entry[] songs, String[] terms, int[] termStarts, int[] postings,
+                        int[] trigrams, int[] trigramStarts, int[] trigramTerms) {
+        this.songs = songs;
+        this.terms = terms;
+        this.termStarts = termStarts;
+        this.postings = postings;
+        this.trigrams = trigrams;
+        this.trigramStarts = trigramStarts;
+        this.trigramTerms = trigramTerms;
+        matchedTokens = new int[songs.length];
+        scores = new int[songs.length];
+        touched = new int[1024];
+    }
+
+    public static SearchIndex build(List<SongMetadataCache.Entry> songList){
+        SongMetadataCache.Entry[] songs = songList.toArray(new SongMetadataCache.Entry[0]);
+
+        // collect the songs of every term, the songs are visited in order so each list stays sorted
+        Map<String, int[]> termSongs = new HashMap<>();
+        List<String> songTerms = new ArrayList<>();
+        for (int song = 0; song < songs.length; song++){
+            songTerms.clear();
+            tokenize(songs[song].getSongTitle(), songTerms);
+            tokenize(songs[song].getSongArtist(), songTerms);
+            tokenizePath(songs[song].getFilePath(), songTerms);
+
+            for (String term : songTerms){
+                // [count, song ids...]
+                int[] list = termSongs.get(term);
+                if (list == null){
+                    list = new int[]{0, 0, 0, 0};
+                    termSongs.put(term, list);
+                }
+                int count = list[0];
+                if (count > 0 && list[count] == song) continue;
+                if (count + 1 == list.length){
+                    list = Arrays.copyOf(list, list.length * 2);
+                    termSongs.put(term, list);
+                }
+                list[count + 1] = song;
+                list[0] = count + 1;
+            }
+        }
+
+        // flatten into the sorted dictionary and one postings array
+        String[] terms = termSongs.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        int[] termStarts = new int[terms.length + 1];
+        int postingCount = 0;
+        for (int t = 0; t < terms.length; t++){
+            termStarts[t] = postingCount;
+            postingCount += termSongs.get(terms[t])[0];
+        }
+        termStarts[terms.length] = postingCount;
+
+        int[] postings = new int[postingCount];
+        for (int t = 0; t < terms.length; t++){
+            int[] list = termSongs.get(terms[t]);
+            System.arraycopy(list, 1, postings, termStarts[t], list[0]);
+        }
+
+        // trigram -> terms, built by sorting (trigram << 32 | term) pairs
+        int pairCount = 0;
+        for (String term : terms) pairCount += Math.max(0, term.length() - 2);
+        long[] pairs = new long[pairCount];
+        int pair = 0;
+        for (int t = 0; t < terms.length; t++){
+            String term = terms[t];
+            for (int i = 0; i + 3 <= term.length(); i++) pairs[pair++] = (long) trigram(term, i) << 32 | t;
+        }
+        Arrays.sort(pairs);
+
+        int[] trigrams = new int[pairCount];
+        int[] trigramStarts = new int[pairCount + 1];
+        int[] trigramTerms = new int[pairCount];
+        int trigramCount = 0;
+        int termCount = 0;
+        for (int i = 0; i < pairCount; i++){
+            int key = (int) (pairs[i] >>> 32);
+            int term = (int) pairs[i];
+            if (trigramCount == 0 || trigrams[trigramCount - 1] != key){
+                trigrams[trigramCount] = key;
+                trigramStarts[trigramCount] = termCount;
+                trigramCount++;
+            } else if (trigramTerms[termCount - 1] == term){
+                // the same trigram shows up twice in one term
+                continue;
+            }
+            trigramTerms[termCount++] = term;
+        }
+        trigramStarts[trigramCount] = termCount;
+
+        return new SearchIndex(songs, terms, termStarts, postings, Arrays.copyOf(trigrams, trigramCount),
+                Arrays.copyOf(trigramStarts, trigramCount + 1), Arrays.copyOf(trigramTerms, termCount));
+    }
+
+    // returns the best matching songs (at most maxResults), best match first
+    public synchronized List<SongMetadataCache.Entry> search(String query, int maxResults){
+        List<String> tokens = new ArrayList<>();
+        tokenize(query, tokens);
+        List<SongMetadataCache.Entry> results = new ArrayList<>();
+        if (tokens.isEmpty()) return results;
+
+        int touchedCount = 0;
+        completedCount = 0;
+        queryTokenCount = tokens.size();
+        for (int token = 0; token < tokens.size(); token++){
+            String text = tokens.get(token);
+
+            // a short one word query can match a big part of the library, once there are enough results for the
+            // list the remaining (weaker) prefix and substring matches aren't worth going through. with more words
+            // a song that matched the earlier ones better could still come in through a weaker term of the last one
+            // and outscore the songs counted so far, so those go through every term
+            boolean stopEarly = tokens.size() == 1;
+
+            // a song only stays in the running if it matched every token before this one
+            // (terms are tried best kind first so a song gets the score of its best match)
+            int exact = Arrays.binarySearch(terms, text);
+            if (exact >= 0) touchedCount = matchTerm(exact, token, EXACT_SCORE, touchedCount);
+
+            int prefixStart = exact >= 0 ? exact + 1 : -exact - 1;
+            int prefixEnd = prefixStart;
+            while (prefixEnd < terms.length && terms[prefixEnd].startsWith(text)){
+                if (stopEarly && completedCount >= maxResults) break;
+                touchedCount = matchTerm(prefixEnd, token, PREFIX_SCORE, touchedCount);
+                prefixEnd++;
+            }
+
+            // one or two letters inside a word match almost everything, so those only match as prefixes
+            if (text.length() >= 3 && !(stopEarly && completedCount >= maxResults)){
+                for (int term : substringTerms(text)){
+                    if (term >= prefixStart && term < prefixEnd || term == exact) continue;
+                    if (stopEarly && completedCount >= maxResults) break;
+                    touchedCount = matchTerm(term, token, SUBSTRING_SCORE, touchedCount);
+                }
+            }
+        }
+
+        // keep the songs that matched every token and reset the scratch arrays for the next query
+        int[] matches = new int[touchedCount];
+        int matchCount = 0;
+        for (int i = 0; i < touchedCount; i++){
+            int song = touched[i];
+            if (matchedTokens[song] == tokens.size()) matches[matchCount++] = song;
+        }
+        final int[] matchScores = new int[matchCount];
+        for (int i = 0; i < matchCount; i++) matchScores[i] = scores[matches[i]];
+        for (int i = 0; i < touchedCount; i++){
+            matchedTokens[touched[i]] = 0;
+            scores[touched[i]] = 0;
+        }
+
+        // highest score first, ties stay in library order. there are only a few possible scores so going through
+        // the matches once per score is cheaper than sorting what can be hundreds of thousands of matches
+        for (int score = EXACT_SCORE * tokens.size(); score > 0 && results.size() < maxResults; score--){
+            for (int i = 0; i < matchCount && results.size() < maxResults; i++){
+                if (matchScores[i] == score) results.add(songs[matches[i]]);
+            }
+        }
+        return results;
+    }
+
+    // marks the songs of the term as matching the token, returns the new number of touched songs
+    private int matchTerm(int term, int token, int score, int touchedCount){
+        for (int i = termStarts[term]; i < termStarts[term + 1]; i++){
+            int song = postings[i];
+            if (matchedTokens[song] != token) continue;
+            if (token + 1 == queryTokenCount) completedCount++;
+
+            if (token == 0){
+                if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touched.length * 2);
+                touched[touchedCount++] = song;
+            }
+            matchedTokens[song] = token + 1;
+            scores[song] += score;
+        }
+        return touchedCount;
+    }
+
+    // terms that contain the text, found by intersecting the term lists of its trigrams
+    private int[] substringTerms(String text){
+        int[] candidates = null;
+        for (int i = 0; i + 3 <= text.length(); i++){
+            int index = Arrays.binarySearch(trigrams, trigram(text, i));
+            if (index < 0) return new int[0];
+            int[] termsWithTrigram = Arrays.copyOfRange(trigramTerms, trigramStarts[index], trigramStarts[index + 1]);
+            candidates = candidates == null ? termsWithTrigram : intersect(candidates, termsWithTrigram);
+            if (candidates.length == 0) return candidates;
+        }
+
+        // the trigrams could be in the wrong order, check the real thing
+        int count = 0;
+        for (int term : candidates){
+            if (terms[term].contains(text)) candidates[count++] = term;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    private static int[] intersect(int[] a, int[] b){
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length){
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else{
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // 10 bits per char, exact for latin text. other scripts can share a trigram, which is fine since
+    // substring matches get checked against the term anyway
+    private static int trigram(String text, int offset){
+        return (text.charAt(offset) & 0x3FF) << 20 | (text.charAt(offset + 1) & 0x3FF) << 10
+                | (text.charAt(offset + 2) & 0x3FF);
+    }
+
+    // lower case words made of letters and digits
+    static void tokenize(String text, List<String> tokens){
+        if (text == null) return;
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++){
+            boolean partOfWord = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (partOfWord && start < 0){
+                start = i;
+            } else if (!partOfWord && start >= 0){
+                tokens.add(lowerCase.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    // the file name (without .mp3) and the folders right above it
+    private static void tokenizePath(String filePath, List<String> tokens){
+        String[] parts = filePath.split("[/\\\\]");
+        int first = Math.max(0, parts.length - 1 - PATH_FOLDERS_INDEXED);
+        for (int i = first; i < parts.length; i++){
+            String part = parts[i];
+            if (i == parts.length - 1 && part.toLowerCase(Locale.ROOT).endsWith(".mp3")){
+                part = part.substring(0, part.length() - 4);
+            }
+            tokenize(part, tokens);
+        }
+    }
+
+    public int size(){
+        return songs.length;
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+//byte offsets of every FRAMES_PER_ENTRY-th frame of an mp3 so that seeking can jump straight to the right spot in the file
+//instead of making JLayer read through every frame before it
+//
+//the index is built once per file by walking the frame headers and is kept in the cache directory next to the metadata
+//file layout: [magic int][version int][file size long][last modified long][path length int][path bytes]
+//             [frames per entry int][frame count int][entry count int] followed by the entries as longs
+public class SeekIndex {
+
+    private static final int MAGIC = 0x4A4D5349; // "JMSI"
+    private static final int VERSION = 1;
+
+    //every 8th frame keeps the index small while only leaving a handful of frames to skip
+    public static final int FRAMES_PER_ENTRY = 8;
+
+    //builds indexes of songs that just started playing so that the first seek doesn't have to wait
+    private static final ExecutorService backgroundBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "seek-index-builder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final LongBuffer offsets;
+    private final int frameCount;
+
+    private SeekIndex(LongBuffer offsets, int frameCount) {
+        this.offsets = offsets;
+        this.frameCount = frameCount;
+    }
+
+    // reads the index from the cache or builds it if it's missing or outdated
+    public static SeekIndex load(Song song) throws IOException {
+        File file = new File(song.getFilePath());
+        Path indexFile = indexFileFor(file);
+
+        SeekIndex seekIndex = readIndexFile(indexFile, file);
+        if (seekIndex != null) return seekIndex;
+
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        seekIndex = build(song.getSource(), song.getMp3Header());
+        try{
+            writeIndexFile(indexFile, file, fileSize, lastModified, seekIndex);
+        } catch (IOException e){
+            // the index still works, it just has to be built again next time
+            e.printStackTrace();
+        }
+        return seekIndex;
+    }
+
+    public static void loadInBackground(final Song song){
+        backgroundBuilder.execute(new Runnable() {
+            @Override
+            public void run() {
+                song.getSeekIndex();
+            }
+        });
+    }
+
+    // byte position of the closest indexed frame at or before the given frame
+    public long getByteOffset(int frame){
+        return offsets.get(entryFor(frame));
+    }
+
+    // the frame that getByteOffset() points to
+    public int getIndexedFrame(int frame){
+        return entryFor(frame) * FRAMES_PER_ENTRY;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    private int entryFor(int frame){
+        int entry = Math.max(0, frame) / FRAMES_PER_ENTRY;
+        return Math.min(entry, offsets.limit() - 1);
+    }
+
+    // walks the frame headers (without decoding) and remembers where every FRAMES_PER_ENTRY-th frame starts
+    private static SeekIndex build(Mp3Source source, Mp3Header mp3Header) throws IOException {
+        long position = mp3Header.getAudioDataStart();
+        long end = Math.min(mp3Header.getAudioDataEnd(), source.size());
+
+        long[] entries = new long[mp3Header.getFrameCount() / FRAMES_PER_ENTRY + 16];
+        int entryCount = 0;
+        int frame = 0;
+
+        // the headers are read straight out of the mapped file
+        while (position + 4 <= end){
+            int header = source.readInt(position);
+            if (!Mp3Header.isValidHeader(header)){
+                // lost sync (junk between frames), look for the next header
+                position++;
+                continue;
+            }
+
+            if (frame % FRAMES_PER_ENTRY == 0){
+                if (entryCount == entries.length) entries = Arrays.copyOf(entries, entries.length * 2);
+                entries[entryCount++] = position;
+            }
+            frame++;
+            position += Mp3Header.frameLength(header);
+        }
+
+        if (entryCount == 0) throw new IOException("No mp3 frames found");
+        return new SeekIndex(LongBuffer.wrap(entries, 0, entryCount).slice(), frame);
+    }
+
+    // returns null if there is no index for this file or the file changed since it was indexed
+    private static SeekIndex readIndexFile(Path indexFile, File file){
+        if (!Files.exists(indexFile)) return null;
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)){
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+
+            long fileSize = buffer.getLong();
+            long lastModified = buffer.getLong();
+            byte[] path = new byte[buffer.getInt()];
+            buffer.get(path);
+            if (fileSize != file.length() || lastModified != file.lastModified()
+                    || !file.getPath().equals(new String(path, StandardCharsets.UTF_8))) return null;
+
+            if (buffer.getInt() != FRAMES_PER_ENTRY) return null;
+            int frameCount = buffer.getInt();
+            int entryCount = buffer.getInt();
+            if (entryCount <= 0 || entryCount > buffer.remaining() / 8) return null;
+
+            // the entries are read straight out of the mapped file
+            LongBuffer offsets = buffer.slice().asLongBuffer();
+            offsets.limit(entryCount);
+            return new SeekIndex(offsets, frameCount);
+        } catch (Exception e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void writeIndexFile(Path indexFile, File file, long fileSize, long lastModified, SeekIndex seekIndex)
+            throws IOException {
+        Files.createDirectories(indexFile.getParent());
+
+        byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+        int entryCount = seekIndex.offsets.limit();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 8 + 4 + path.length + 4 + 4 + 4 + entryCount * 8);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putLong(fileSize).putLong(lastModified);
+        buffer.putInt(path.length).put(path);
+        buffer.putInt(FRAMES_PER_ENTRY).putInt(seekIndex.frameCount).putInt(entryCount);
+        for (int i = 0; i < entryCount; i++) buffer.putLong(seekIndex.offsets.get(i));
+        buffer.flip();
+
+        // write to a temp file first so that a half written index never gets read
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Path indexFileFor(File file){
+        return SongMetadataCache.cacheFileFor(file, "seek", ".idx");
+    }
+}
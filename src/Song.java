@@ -5,6 +5,7 @@ import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
 
 import java.io.File;
+import java.io.IOException;
 
 //Class used to describe a song
 public class Song {
@@ -14,21 +15,89 @@ public class Song {
     private String filePath;
     private Mp3File mp3File;
     private double frameRatePerMilliseconds;
+    private int frameCount;
+    private long lengthInMilliseconds;
+
+    //flag to indicate if the frame count came from a full scan (and not from the mp3 header)
+    private boolean frameCountExact;
+
+    //loudness correction from the loudness analysis or the song's tags (null if neither has it)
+    private ReplayGain replayGain;
+
+    //byte offsets used for seeking, loaded the first time the song gets seeked (or played)
+    private SeekIndex seekIndex;
+    private final Object seekIndexLock = new Object();
+
+    //the mapped file and its parsed header, shared by the seek index and playback (opened when first needed)
+    private Mp3Source source;
+    private Mp3Header mp3Header;
+    private final Object sourceLock = new Object();
+
+    //flag to indicate if the song's metadata could be read
+    private boolean loaded;
+
+    private static final Metrics.Histogram parseTimes = Metrics.histogram("song.parse");
+    private static final Metrics.Counter cacheHits = Metrics.counter("song.parse.cached");
 
     public Song(String filePath) {
+        this(filePath, false);
+    }
+
+    // a lazy song from metadata that is already known, nothing gets read from the file until the song is played
+    public Song(SongMetadataCache.Entry metadata) {
+        filePath = metadata.getFilePath();
+        setMetadata(metadata);
+    }
+
+    // lazy songs only read the tag and the mp3 header up front, the full frame scan is put off until scanFrames()
+    // (the getters use the frame count from the Xing/VBRI header, or an estimate from the bitrate until then)
+    public Song(String filePath, boolean lazy) {
         this.filePath = filePath;
+        long startTime = System.nanoTime();
+        FlightRecorderEvents.SongParse event = new FlightRecorderEvents.SongParse();
+        event.begin();
+        boolean cachedSong = false;
         try{
-            mp3File = new Mp3File(filePath);
-            frameRatePerMilliseconds = (double) mp3File.getFrameCount() / mp3File.getLengthInMilliseconds();
+            File file = new File(filePath);
+
+            // skip parsing the mp3 if we already know about this file
+            SongMetadataCache.Entry cached = SongMetadataCache.getInstance().lookup(file);
+            if (cached != null){
+                cachedSong = true;
+                setMetadata(cached);
+
+                if (!lazy) scanFrames();
+                return;
+            }
+
+            // read the size and time before parsing so that a file that changes while we parse gets parsed again next time
+            long fileSize = file.length();
+            long lastModified = file.lastModified();
+
+            if (lazy){
+                // estimate the frame count from the Xing/VBRI header (or the bitrate) instead of scanning every frame
+                // (the header is kept for playback, the file itself only gets mapped once the song is played)
+                mp3Header = Mp3Header.read(file);
+                frameCount = mp3Header.getFrameCount();
+                lengthInMilliseconds = mp3Header.getLengthInMilliseconds();
+                frameCountExact = mp3Header.isFrameCountExact();
+            } else{
+                mp3File = new Mp3File(filePath);
+                frameCount = mp3File.getFrameCount();
+                lengthInMilliseconds = mp3File.getLengthInMilliseconds();
+                frameCountExact = true;
+            }
+            frameRatePerMilliseconds = (double) frameCount / lengthInMilliseconds;
             songLength = convertToSongLengthFormat();
             // use the jaudiotagger library to create an audiofile obj to read mp3 file's info
-            AudioFile audiofile = AudioFileIO.read(new File(filePath));
+            AudioFile audiofile = AudioFileIO.read(file);
 
             //read through the metadata of the audio file
             Tag tag = audiofile.getTag();
             if (tag != null){
                 songTitle = tag.getFirst(FieldKey.TITLE);
                 songArtist = tag.getFirst(FieldKey.ARTIST);
+                replayGain = ReplayGain.fromTag(tag);
             }
             else{
                 // can't read through metadata
@@ -36,15 +105,92 @@ public class Song {
                 songArtist = "Unknown";
 
             }
+            loaded = true;
+
+            // remember the metadata for next time
+            storeInCache(fileSize, lastModified);
 
         } catch (Exception e){
             e.printStackTrace();
+        } finally{
+            // only actual parses go into the histogram, cache hits would hide them
+            if (cachedSong){
+                cacheHits.increment();
+            } else{
+                parseTimes.record(System.nanoTime() - startTime);
+            }
+            event.end();
+            if (event.shouldCommit()){
+                event.filePath = filePath;
+                event.lazy = lazy;
+                event.cached = cachedSong;
+                event.loaded = loaded;
+                event.commit();
+            }
         }
     }
 
+    private void setMetadata(SongMetadataCache.Entry metadata){
+        songTitle = metadata.getSongTitle();
+        songArtist = metadata.getSongArtist();
+        lengthInMilliseconds = metadata.getLengthInMilliseconds();
+        frameCount = metadata.getFrameCount();
+        frameRatePerMilliseconds = metadata.getFrameRatePerMilliseconds();
+        frameCountExact = metadata.isFrameCountExact();
+        replayGain = metadata.getReplayGain();
+        songLength = convertToSongLengthFormat();
+        loaded = true;
+    }
+
+    // parses the file the same way as a lazy song (or takes it from the metadata cache) but only keeps the metadata,
+    // returns null if the file can't be read
+    public static SongMetadataCache.Entry readMetadata(String filePath){
+        Song song = new Song(filePath, true);
+        if (!song.isLoaded()) return null;
+        return SongMetadataCache.getInstance().lookup(new File(filePath));
+    }
+
+    // does the full frame scan if it hasn't been done yet, this reads the whole file so keep it off the EDT
+    // (the getters aren't held up by it, they keep returning the estimate until the scan is done)
+    public void scanFrames(){
+        synchronized (this){
+            if (mp3File != null || !loaded) return;
+        }
+        try{
+            File file = new File(filePath);
+            long fileSize = file.length();
+            long lastModified = file.lastModified();
+
+            Mp3File scanned = new Mp3File(filePath);
+            boolean store;
+            synchronized (this){
+                if (mp3File != null) return;
+                mp3File = scanned;
+                store = !frameCountExact;
+                if (store){
+                    // replace the estimate from the header with the real values
+                    frameCount = mp3File.getFrameCount();
+                    lengthInMilliseconds = mp3File.getLengthInMilliseconds();
+                    frameRatePerMilliseconds = (double) frameCount / lengthInMilliseconds;
+                    songLength = convertToSongLengthFormat();
+                    frameCountExact = true;
+                }
+            }
+            if (store) storeInCache(fileSize, lastModified);
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void storeInCache(long fileSize, long lastModified){
+        SongMetadataCache.getInstance().store(new SongMetadataCache.Entry(new File(filePath).getPath(), fileSize,
+                lastModified, songTitle, songArtist, lengthInMilliseconds, frameCount, frameRatePerMilliseconds,
+                frameCountExact, replayGain));
+    }
+
     private String convertToSongLengthFormat(){
-        long minutes = mp3File.getLengthInMilliseconds() / 60000;
-        long seconds = mp3File.getLengthInMilliseconds() % 60;
+        long minutes = lengthInMilliseconds / 60000;
+        long seconds = lengthInMilliseconds % 60;
         String formattedTime = String.format("%02d:%02d", minutes, seconds);
         return formattedTime;
     }
@@ -58,7 +204,7 @@ public class Song {
         return songArtist;
     }
 
-    public String getSongLength() {
+    public synchronized String getSongLength() {
         return songLength;
     }
 
@@ -66,11 +212,69 @@ public class Song {
         return filePath;
     }
 
+    // songs that came from the metadata cache or were loaded lazily only parse the mp3 once it's actually needed,
+    // so this can read the whole file
     public Mp3File getMp3File() {
-        return mp3File;
+        scanFrames();
+        synchronized (this){
+            return mp3File;
+        }
     }
 
-    public double getFrameRatePerMilliseconds() {
+    // an estimate if the mp3 header doesn't have the frame count and the frames haven't been scanned yet
+    public synchronized double getFrameRatePerMilliseconds() {
         return frameRatePerMilliseconds;
     }
+
+    // an estimate if the mp3 header doesn't have the frame count and the frames haven't been scanned yet
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    // false while the frame count is an estimate
+    public synchronized boolean isFrameCountExact() {
+        return frameCountExact;
+    }
+
+    // might be an estimate until the frames have been scanned
+    public synchronized long getLengthInMilliseconds() {
+        return lengthInMilliseconds;
+    }
+
+    // returns null if the index couldn't be built (seeking then falls back to skipping frames)
+    public SeekIndex getSeekIndex() {
+        synchronized (seekIndexLock){
+            if (seekIndex == null && loaded){
+                try{
+                    seekIndex = SeekIndex.load(this);
+                } catch (Exception e){
+                    e.printStackTrace();
+                }
+            }
+            return seekIndex;
+        }
+    }
+
+    public Mp3Source getSource() throws IOException {
+        synchronized (sourceLock){
+            if (source == null) source = Mp3Source.open(new File(filePath));
+            return source;
+        }
+    }
+
+    // only maps the file if it's mapped already, reading the header doesn't need the whole file
+    public Mp3Header getMp3Header() throws IOException {
+        synchronized (sourceLock){
+            if (mp3Header == null) mp3Header = source != null ? Mp3Header.read(source) : Mp3Header.read(new File(filePath));
+            return mp3Header;
+        }
+    }
+
+    public ReplayGain getReplayGain() {
+        return replayGain;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
 }
@@ -0,0 +1,346 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+//on-disk cache of song metadata so that songs don't have to be re-parsed every time they get loaded
+//entries are keyed by file path and are only used while the file size and last modified time still match
+//
+//file layout: [magic int][version int] followed by records of [record length int][record bytes]
+//records are only ever appended, the newest record for a path wins
+public class SongMetadataCache {
+
+    private static final int MAGIC = 0x4A4D4331; // "JMC1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    //rewrite the file once it's mostly made up of outdated records
+    private static final int MIN_RECORDS_BEFORE_COMPACTING = 1000;
+
+    private static SongMetadataCache instance;
+
+    //the cache directory can be changed with -Djamp.cacheDir=...
+    public static synchronized SongMetadataCache getInstance(){
+        if (instance == null){
+            instance = new SongMetadataCache(getCacheDirectory().resolve("metadata.bin"));
+        }
+        return instance;
+    }
+
+    public static Path getCacheDirectory(){
+        String cacheDir = System.getProperty("jamp.cacheDir");
+        if (cacheDir != null) return Paths.get(cacheDir);
+        return Paths.get(System.getProperty("user.home"), ".jamp", "cache");
+    }
+
+    // per-file cache data (like seek indexes) lives in sub folders of the cache directory
+    // files are named after a hash of the path, the full path should be stored inside the file to rule out collisions
+    public static Path cacheFileFor(File file, String folder, String extension){
+        String name = UUID.nameUUIDFromBytes(file.getPath().getBytes(StandardCharsets.UTF_8)) + extension;
+        return getCacheDirectory().resolve(folder).resolve(name);
+    }
+
+    //metadata of a single song
+    public static class Entry {
+        private final String filePath;
+        private final long fileSize;
+        private final long lastModified;
+        private final String songTitle;
+        private final String songArtist;
+        private final long lengthInMilliseconds;
+        private final int frameCount;
+        private final double frameRatePerMilliseconds;
+        private final boolean frameCountExact;
+
+        //null until the song has been analyzed (or if its tags don't have it)
+        private final ReplayGain replayGain;
+
+        public Entry(String filePath, long fileSize, long lastModified, String songTitle, String songArtist,
+                     long lengthInMilliseconds, int frameCount, double frameRatePerMilliseconds,
+                     boolean frameCountExact) {
+            this(filePath, fileSize, lastModified, songTitle, songArtist, lengthInMilliseconds, frameCount,
+                    frameRatePerMilliseconds, frameCountExact, null);
+        }
+
+        public Entry(String filePath, long fileSize, long lastModified, String songTitle, String songArtist,
+                     long lengthInMilliseconds, int frameCount, double frameRatePerMilliseconds,
+                     boolean frameCountExact, ReplayGain replayGain) {
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.songTitle = songTitle;
+            this.songArtist = songArtist;
+            this.lengthInMilliseconds = lengthInMilliseconds;
+            this.frameCount = frameCount;
+            this.frameRatePerMilliseconds = frameRatePerMilliseconds;
+            this.frameCountExact = frameCountExact;
+            this.replayGain = replayGain;
+        }
+
+        // the same entry with the given replay gain
+        public Entry withReplayGain(ReplayGain replayGain){
+            return new Entry(filePath, fileSize, lastModified, songTitle, songArtist, lengthInMilliseconds, frameCount,
+                    frameRatePerMilliseconds, frameCountExact, replayGain);
+        }
+
+        // getters
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getSongTitle() {
+            return songTitle;
+        }
+
+        public String getSongArtist() {
+            return songArtist;
+        }
+
+        public long getLengthInMilliseconds() {
+            return lengthInMilliseconds;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        public double getFrameRatePerMilliseconds() {
+            return frameRatePerMilliseconds;
+        }
+
+        // false if the frame count was estimated from the mp3 header instead of a full scan
+        public boolean isFrameCountExact() {
+            return frameCountExact;
+        }
+
+        public ReplayGain getReplayGain() {
+            return replayGain;
+        }
+
+        // checks if the file on disk is still the one this entry was made from
+        public boolean matches(long fileSize, long lastModified){
+            return this.fileSize == fileSize && this.lastModified == lastModified;
+        }
+    }
+
+    private final Path cacheFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    //used for appending new records, null if the cache file couldn't be opened
+    private FileChannel writeChannel;
+
+    //number of records in the file (including outdated ones)
+    private int recordCount;
+
+    public SongMetadataCache(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        try{
+            load();
+        } catch (IOException e){
+            // a broken cache just means songs get parsed again
+            e.printStackTrace();
+            entries.clear();
+            recordCount = 0;
+        }
+    }
+
+    // the entry for the path without checking that the file is unchanged, so it doesn't touch the file system
+    public Entry peek(String filePath){
+        return entries.get(filePath);
+    }
+
+    // returns the cached metadata for the file or null if there is none or the file has changed
+    public Entry lookup(File file){
+        Entry entry = entries.get(file.getPath());
+        if (entry == null) return null;
+
+        if (!entry.matches(file.length(), file.lastModified())){
+            // file changed since it was cached
+            entries.remove(file.getPath(), entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public void store(Entry entry){
+        if (entry.getReplayGain() == null){
+            // parsing the song again (e.g. for the exact frame count) shouldn't lose what the loudness analysis found
+            Entry previous = entries.get(entry.getFilePath());
+            if (previous != null && previous.getReplayGain() != null
+                    && previous.matches(entry.getFileSize(), entry.getLastModified())){
+                entry = entry.withReplayGain(previous.getReplayGain());
+            }
+        }
+        entries.put(entry.getFilePath(), entry);
+
+        ByteBuffer record = encode(entry);
+        synchronized (this){
+            if (writeChannel == null) return;
+            try{
+                while (record.hasRemaining()) writeChannel.write(record);
+                recordCount++;
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+
+        long validLength = HEADER_SIZE;
+        if (Files.exists(cacheFile) && Files.size(cacheFile) >= HEADER_SIZE){
+            try (FileChannel readChannel = FileChannel.open(cacheFile, StandardOpenOption.READ)){
+                MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION){
+                    validLength = readRecords(buffer);
+                } else{
+                    // written by an older version, start over
+                    recordCount = 0;
+                }
+            }
+        }
+
+        if (recordCount >= MIN_RECORDS_BEFORE_COMPACTING && recordCount > entries.size() * 2){
+            compact();
+            return;
+        }
+
+        openForAppending(validLength);
+    }
+
+    // returns the position right after the last complete record
+    private long readRecords(ByteBuffer buffer){
+        long validLength = buffer.position();
+        while (buffer.remaining() >= 4){
+            int recordLength = buffer.getInt();
+            if (recordLength <= 0 || recordLength > buffer.remaining()) break;
+
+            int recordEnd = buffer.position() + recordLength;
+            try{
+                Entry entry = decode(buffer.slice(buffer.position(), recordLength));
+                entries.put(entry.getFilePath(), entry);
+                recordCount++;
+            } catch (BufferUnderflowException | IllegalArgumentException e){
+                // partly written record at the end of the file
+                break;
+            }
+            buffer.position(recordEnd);
+            validLength = recordEnd;
+        }
+        return validLength;
+    }
+
+    private void openForAppending(long validLength) throws IOException {
+        writeChannel = FileChannel.open(cacheFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (writeChannel.size() < HEADER_SIZE || validLength == HEADER_SIZE && recordCount == 0){
+            // new (or unusable) file, write the header
+            writeChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            while (header.hasRemaining()) writeChannel.write(header);
+        } else if (writeChannel.size() != validLength){
+            // drop anything after the last complete record
+            writeChannel.truncate(validLength);
+        }
+        writeChannel.position(writeChannel.size());
+    }
+
+    // writes only the latest record of every song into a new file
+    private void compact() throws IOException {
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.write(header);
+            for (Entry entry : entries.values()){
+                ByteBuffer record = encode(entry);
+                while (record.hasRemaining()) channel.write(record);
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordCount = entries.size();
+        openForAppending(Files.size(cacheFile));
+    }
+
+    // [record length int][record bytes], also used for the library index and playlists
+    // the replay gain is optional at the end of the record ([flag byte][4 floats]) so that records written before
+    // it existed can still be read, decode() needs a buffer that ends where the record ends
+    static ByteBuffer encode(Entry entry){
+        byte[] path = entry.getFilePath().getBytes(StandardCharsets.UTF_8);
+        byte[] title = bytesOf(entry.getSongTitle());
+        byte[] artist = bytesOf(entry.getSongArtist());
+
+        ReplayGain replayGain = entry.getReplayGain();
+        int recordLength = 4 + path.length + 8 + 8 + 4 + title.length + 4 + artist.length + 8 + 4 + 8 + 1
+                + (replayGain != null ? 1 + 16 : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + recordLength);
+        buffer.putInt(recordLength);
+        buffer.putInt(path.length).put(path);
+        buffer.putLong(entry.getFileSize());
+        buffer.putLong(entry.getLastModified());
+        buffer.putInt(title.length).put(title);
+        buffer.putInt(artist.length).put(artist);
+        buffer.putLong(entry.getLengthInMilliseconds());
+        buffer.putInt(entry.getFrameCount());
+        buffer.putDouble(entry.getFrameRatePerMilliseconds());
+        buffer.put((byte) (entry.isFrameCountExact() ? 1 : 0));
+        if (replayGain != null){
+            buffer.put((byte) 1);
+            buffer.putFloat(replayGain.getTrackGain()).putFloat(replayGain.getTrackPeak());
+            buffer.putFloat(replayGain.getAlbumGain()).putFloat(replayGain.getAlbumPeak());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static Entry decode(ByteBuffer buffer){
+        String filePath = readString(buffer);
+        long fileSize = buffer.getLong();
+        long lastModified = buffer.getLong();
+        String songTitle = readString(buffer);
+        String songArtist = readString(buffer);
+        long lengthInMilliseconds = buffer.getLong();
+        int frameCount = buffer.getInt();
+        double frameRatePerMilliseconds = buffer.getDouble();
+        boolean frameCountExact = buffer.get() != 0;
+        ReplayGain replayGain = null;
+        if (buffer.remaining() >= 1 + 16 && buffer.get() != 0){
+            replayGain = new ReplayGain(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+        }
+        return new Entry(filePath, fileSize, lastModified, songTitle, songArtist,
+                lengthInMilliseconds, frameCount, frameRatePerMilliseconds, frameCountExact, replayGain);
+    }
+
+    private static byte[] bytesOf(String text){
+        return text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("bad string length");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+//live spectrum of what's playing, for the SpectrumView
+//
+//the audio output thread hands every chunk it writes to the line to tap(), which only mixes it down into a ring of
+//floats (no locks, nothing that can block, nothing allocated) so the audio never waits on the visualizer.
+//the analyzer runs on its own low priority thread at display rate, takes the newest FFT_SIZE samples from the ring,
+//runs an fft over buffers that are allocated once and boils the result down to a few log spaced bands.
+//the bands are handed to the gui through a triple buffer: the analyzer and the gui each own one buffer and swap with
+//the shared middle one atomically, so neither side ever waits on the other or sees a half written frame.
+//the time spent analyzing is measured and the analyzer slows down to stay under -Djamp.spectrumCpu (a fraction of
+//one core, 0.02 by default)
+public class SpectrumAnalyzer {
+
+    public static final int BANDS = 32;
+
+    private static final int FFT_SIZE = 2048;
+    private static final int LOG_FFT_SIZE = 11;
+
+    //mono samples kept for the analyzer, enough for the fft window plus the audio that's still in the line
+    private static final int TAP_SIZE = 16384;
+
+    //how often the bands get updated (display rate)
+    private static final long FRAME_NANOS = 1_000_000_000L / 30;
+
+    //share of one core the analyzer may use
+    private static final double MAX_CPU_LOAD = Math.max(0.001, Double.parseDouble(System.getProperty("jamp.spectrumCpu", "0.02")));
+
+    //bands go from MIN_FREQUENCY to MAX_FREQUENCY, levels from MIN_DB (0) to 0 dB (1)
+    private static final double MIN_FREQUENCY = 40;
+    private static final double MAX_FREQUENCY = 16000;
+    private static final double MIN_DB = -70;
+
+    //how fast the bars fall (whole height per second)
+    private static final float FALL_PER_SECOND = 1.5f;
+
+    //the output thread writes in chunks, only let the bars fall when nothing new came for longer than that
+    private static final long IDLE_NANOS = 100_000_000L;
+
+    //written by the audio output thread only
+    private final float[] tap = new float[TAP_SIZE];
+    private volatile long tapPosition;
+    private volatile int sampleRate;
+    private volatile int latencyFrames;
+
+    //only touched by the analyzer thread
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] real = new float[FFT_SIZE];
+    private final float[] imaginary = new float[FFT_SIZE];
+    private final float[] cosTable = new float[FFT_SIZE / 2];
+    private final float[] sinTable = new float[FFT_SIZE / 2];
+    private final int[] bitReversed = new int[FFT_SIZE];
+    private final float[] levels = new float[BANDS];
+    private long lastAnalyzedPosition = -1;
+    private long lastAnalyzedTime;
+
+    //triple buffer, the middle index has NEW_DATA set when the analyzer has swapped in a frame the gui hasn't seen
+    private static final int NEW_DATA = 4;
+    private final float[][] bandBuffers = new float[3][BANDS];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    //smoothed share of one core spent analyzing
+    private volatile double cpuLoad;
+
+    private volatile Thread analyzerThread;
+
+    public SpectrumAnalyzer() {
+        for (int i = 0; i < FFT_SIZE; i++){
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+            bitReversed[i] = Integer.reverse(i) >>> (32 - LOG_FFT_SIZE);
+        }
+        for (int i = 0; i < FFT_SIZE / 2; i++){
+            cosTable[i] = (float) Math.cos(2 * Math.PI * i / FFT_SIZE);
+            sinTable[i] = (float) Math.sin(2 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    public synchronized void start(){
+        if (analyzerThread != null) return;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runAnalyzer();
+            }
+        }, "spectrum-analyzer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        analyzerThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop(){
+        if (analyzerThread == null) return;
+        analyzerThread.interrupt();
+        analyzerThread = null;
+    }
+
+    // called by the audio output thread with what it just wrote to the line (latencyFrames is how much the line
+    // holds ahead of what can be heard)
+    public void tap(short[] ring, int ringMask, long start, int count, int channels, int sampleRate, int latencyFrames){
+        long position = tapPosition;
+        for (int i = 0; i + channels <= count; i += channels){
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++) sum += ring[(int) ((start + i + channel) & ringMask)];
+            tap[(int) (position & (TAP_SIZE - 1))] = sum / (channels * 32768f);
+            position++;
+        }
+        this.sampleRate = sampleRate;
+        this.latencyFrames = latencyFrames;
+        tapPosition = position;
+    }
+
+    // the newest bands (0 to 1) for the gui, never blocks
+    public float[] getBands(){
+        if ((middle.get() & NEW_DATA) != 0){
+            front = middle.getAndSet(front) & ~NEW_DATA;
+        }
+        return bandBuffers[front];
+    }
+
+    // share of one core spent analyzing
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    private void runAnalyzer(){
+        long nextFrame = System.nanoTime();
+        long lastTime = nextFrame;
+        while (!Thread.currentThread().isInterrupted()){
+            long startTime = System.nanoTime();
+            float elapsedSeconds = (startTime - lastTime) / 1e9f;
+            lastTime = startTime;
+
+            analyze(startTime, elapsedSeconds);
+
+            // stay under the cpu budget by waiting longer after an expensive frame
+            long cost = System.nanoTime() - startTime;
+            long interval = Math.max(FRAME_NANOS, (long) (cost / MAX_CPU_LOAD));
+            cpuLoad = cpuLoad * 0.9 + 0.1 * ((double) cost / interval);
+
+            nextFrame = Math.max(nextFrame + interval, System.nanoTime());
+            LockSupport.parkNanos(this, nextFrame - System.nanoTime());
+        }
+    }
+
+    private void analyze(long time, float elapsedSeconds){
+        float fall = FALL_PER_SECOND * elapsedSeconds;
+        long position = tapPosition - latencyFrames;
+        int rate = sampleRate;
+
+        if (position == lastAnalyzedPosition || position < FFT_SIZE || rate == 0){
+            // nothing new, if it stays that way (paused or stopped) let the bars fall
+            if (time - lastAnalyzedTime < IDLE_NANOS) return;
+            for (int band = 0; band < BANDS; band++) levels[band] = Math.max(0, levels[band] - fall);
+            publish();
+            return;
+        }
+        lastAnalyzedPosition = position;
+        lastAnalyzedTime = time;
+
+        // copy the window out of the tap first, if the output thread lapped us while copying the frame is skipped
+        long first = position - FFT_SIZE;
+        for (int i = 0; i < FFT_SIZE; i++){
+            real[i] = tap[(int) ((first + i) & (TAP_SIZE - 1))] * window[i];
+            imaginary[i] = 0;
+        }
+        if (tapPosition - first > TAP_SIZE) return;
+
+        fft();
+
+        // loudest bin of each band, in dB
+        double ratio = MAX_FREQUENCY / MIN_FREQUENCY;
+        double binWidth = (double) rate / FFT_SIZE;
+        for (int band = 0; band < BANDS; band++){
+            int low = (int) (MIN_FREQUENCY * Math.pow(ratio, (double) band / BANDS) / binWidth);
+            int high = (int) (MIN_FREQUENCY * Math.pow(ratio, (double) (band + 1) / BANDS) / binWidth);
+            low = Math.max(1, Math.min(low, FFT_SIZE / 2 - 1));
+            high = Math.max(low + 1, Math.min(high, FFT_SIZE / 2));
+            float peak = 0;
+            for (int bin = low; bin < high; bin++){
+                float power = real[bin] * real[bin] + imaginary[bin] * imaginary[bin];
+                if (power > peak) peak = power;
+            }
+            // a full scale sine peaks at FFT_SIZE / 4 with the hann window
+            double db = 10 * Math.log10(peak / ((FFT_SIZE / 4.0) * (FFT_SIZE / 4.0)) + 1e-12);
+            float level = (float) Math.max(0, Math.min(1, (db - MIN_DB) / -MIN_DB));
+
+            // jump up right away, fall slowly
+            levels[band] = Math.max(level, levels[band] - fall);
+        }
+        publish();
+    }
+
+    private void publish(){
+        System.arraycopy(levels, 0, bandBuffers[back], 0, BANDS);
+        back = middle.getAndSet(back | NEW_DATA) & ~NEW_DATA;
+    }
+
+    // in place radix 2 fft over real/imaginary
+    private void fft(){
+        for (int i = 0; i < FFT_SIZE; i++){
+            int j = bitReversed[i];
+            if (j > i){
+                float swap = real[i];
+                real[i] = real[j];
+                real[j] = swap;
+                swap = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = swap;
+            }
+        }
+        for (int size = 2; size <= FFT_SIZE; size <<= 1){
+            int half = size >> 1;
+            int step = FFT_SIZE / size;
+            for (int start = 0; start < FFT_SIZE; start += size){
+                for (int k = 0; k < half; k++){
+                    float cos = cosTable[k * step];
+                    float sin = -sinTable[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    float oddReal = real[odd] * cos - imaginary[odd] * sin;
+                    float oddImaginary = real[odd] * sin + imaginary[odd] * cos;
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+                }
+            }
+        }
+    }
+}
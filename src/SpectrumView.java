@@ -0,0 +1,89 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
+
+//draws the bands of a SpectrumAnalyzer as bars over the record image
+//
+//a swing timer repaints it at display rate, painting only picks up the newest bands (it never waits on the analyzer)
+//and it stops repainting once the bars have fallen down. the tooltip shows how much cpu the analyzer is using
+public class SpectrumView extends JComponent {
+
+    private static final int FRAMES_PER_SECOND = 30;
+
+    //space between the bars and how far they reach up the image
+    private static final int BAR_GAP = 2;
+    private static final float MAX_BAR_HEIGHT = 0.8f;
+
+    private static final Color BAR_COLOR = new Color(255, 255, 255, 170);
+
+    private final SpectrumAnalyzer analyzer;
+    private final ImageIcon image;
+    private final Timer repaintTimer;
+
+    //true while the last frame painted any bars, so one more frame clears them
+    private boolean barsShown;
+
+    public SpectrumView(SpectrumAnalyzer analyzer, ImageIcon image) {
+        this.analyzer = analyzer;
+        this.image = image;
+        setOpaque(false);
+        setToolTipText("");
+
+        repaintTimer = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (barsShown || hasBars(SpectrumView.this.analyzer.getBands())) repaint();
+            }
+        });
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        repaintTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        repaintTimer.stop();
+        super.removeNotify();
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        return String.format("Spectrum analyzer: %.2f%% cpu", analyzer.getCpuLoad() * 100);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (image != null){
+            image.paintIcon(this, g, (getWidth() - image.getIconWidth()) / 2, (getHeight() - image.getIconHeight()) / 2);
+        }
+
+        float[] bands = analyzer.getBands();
+        barsShown = hasBars(bands);
+        if (!barsShown) return;
+
+        // bars across the middle of the component, growing up from the bottom
+        int width = Math.min(getWidth(), image != null ? image.getIconWidth() : getWidth());
+        int left = (getWidth() - width) / 2;
+        int barWidth = Math.max(1, width / bands.length - BAR_GAP);
+        int maxHeight = (int) (getHeight() * MAX_BAR_HEIGHT);
+        g.setColor(BAR_COLOR);
+        for (int band = 0; band < bands.length; band++){
+            int height = (int) (bands[band] * maxHeight);
+            if (height <= 0) continue;
+            int x = left + band * width / bands.length;
+            g.fillRect(x, getHeight() - height, barWidth, height);
+        }
+    }
+
+    private static boolean hasBars(float[] bands){
+        for (float band : bands){
+            if (band > 0) return true;
+        }
+        return false;
+    }
+}
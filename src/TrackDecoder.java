@@ -0,0 +1,412 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+//decodes a single song frame by frame for the playback engine
+//takes care of jumping to the start frame, skipping the Xing/Info frame and trimming the LAME encoder delay and padding
+//so that consecutive tracks of a gapless album join up without silence in between
+//
+//songs decoded for playback go through the PcmCache: parts of the song that are cached are read from there instead of
+//the file, and the parts that get decoded are added to it. after jumping to a frame the PRIMING_FRAMES before it are
+//decoded too (and thrown away) so the decoder has most of the bit reservoir and the overlap of the frames before.
+//that is usually enough, but main_data_begin can reach up to 511 bytes back, which at low bitrates or sample rates
+//is more than PRIMING_FRAMES frames, so the first frames after a jump can come out slightly different from playing
+//through. only frames that are known to be exact get cached: ones decoded from the start of the song without
+//skipping, and ones whose frame before had at least a full reservoir of main data decoded ahead of it
+public class TrackDecoder {
+
+    //every mp3 decoder outputs this many samples of delay on top of the encoder delay
+    private static final int DECODER_DELAY = 529;
+
+    //the most samples (all channels) a single mp3 frame decodes to
+    public static final int MAX_FRAME_SAMPLES = 1152 * 2;
+
+    //the frame before the first one has the overlap the first one needs, and the one before that has the start of
+    //the bit reservoir the frame before needs
+    private static final int PRIMING_FRAMES = 2;
+
+    //the furthest back main_data_begin can point
+    private static final int MAX_RESERVOIR_BYTES = 511;
+
+    private final Song song;
+    private final Mp3Header mp3Header;
+    private final Decoder decoder;
+
+    //null while the frames come from the pcm cache
+    private Bitstream bitstream;
+
+    //index of the next frame that gets read from the file (the stream starts at an indexed frame before it)
+    private int streamFrame;
+
+    //index of the next frame that gets handed out
+    private int frameIndex;
+
+    //main data (in bytes, never more than there really is) decoded since the stream was opened, how much of it was
+    //decoded before the last frame (-1 if no frame was decoded yet) and whether the stream started at the first frame
+    //and nothing got skipped since
+    private long decodedBytes;
+    private long decodedBytesBeforeLastFrame;
+    private boolean decodedFromStart;
+
+    //the frame decodeFromStream() returned last decodes the same as it would when playing through from the start
+    private boolean frameExact;
+
+    //null if the song isn't decoded for playback or the cache is turned off
+    private final PcmCache pcmCache;
+    private final String cacheKey;
+
+    //cached block the frames are read from (pinned until it's done) and the next frame in it
+    private PcmCache.Block cachedBlock;
+    private int cachedBlockFrame;
+
+    //block that gets filled with the frames as they are decoded, published once it's full
+    private PcmCache.Block fillingBlock;
+    private int fillingBlockIndex;
+
+    //frames from the cache get copied here
+    private short[] cacheBuffer;
+
+    //samples (per channel) to drop from the start and how many may be played in total, -1 means no limit
+    private long samplesToTrim;
+    private long samplesLeft = -1;
+
+    //position (in ms) of the song where decoding started
+    private final int startInMilli;
+
+    //pcm decoded ahead of time (see predecode()), handed out before anything else
+    private short[] predecoded;
+    private int predecodedOffset;
+    private int predecodedLength;
+
+    //where the samples of the last decoded frame are
+    private short[] buffer;
+    private int offset;
+
+    private int sampleRate;
+    private int channels;
+
+    //replay gain, applied to every frame as it gets decoded
+    private volatile float gain = 1;
+
+    public TrackDecoder(Song song, int startFrame) throws IOException, JavaLayerException {
+        this(song, startFrame, true);
+    }
+
+    // songs that only get decoded once from start to end (e.g. for the loudness analysis) don't need a seek index
+    // and would only push the songs that get played out of the pcm cache
+    public TrackDecoder(Song song, int startFrame, boolean playback) throws IOException, JavaLayerException {
+        this.song = song;
+        mp3Header = song.getMp3Header();
+
+        // have the index ready by the time the user seeks
+        if (startFrame == 0 && playback) SeekIndex.loadInBackground(song);
+
+        frameIndex = startFrame;
+
+        // the clock starts counting from wherever in the song we start playing
+        startInMilli = startFrame > 0 ? (int) (startFrame / song.getFrameRatePerMilliseconds()) : 0;
+
+        // gapless info from the LAME tag
+        if (mp3Header.getEncoderDelay() > 0 || mp3Header.getEncoderPadding() > 0){
+            long samplesPerFrame = mp3Header.getSamplesPerFrame();
+            long validStart = mp3Header.getEncoderDelay() + DECODER_DELAY;
+            long validEnd = (long) mp3Header.getFrameCount() * samplesPerFrame - mp3Header.getEncoderPadding()
+                    + DECODER_DELAY;
+            long firstSample = startFrame * samplesPerFrame;
+            samplesToTrim = Math.max(0, validStart - firstSample);
+            samplesLeft = Math.max(0, validEnd - Math.max(firstSample, validStart));
+        }
+
+        decoder = new Decoder();
+
+        pcmCache = playback ? PcmCache.getInstance() : null;
+        cacheKey = pcmCache != null ? PcmCache.keyOf(song) : null;
+        if (pcmCache != null) cachedBlock = lookupBlock();
+
+        // open the file right away unless the start is cached (so a file that can't be read fails here)
+        if (cachedBlock == null) openStream();
+    }
+
+    // starts reading the file PRIMING_FRAMES before frameIndex (or at the start)
+    private void openStream() throws IOException {
+        if (bitstream != null) closeStream();
+
+        // start at the first real audio frame (the Xing/Info frame would decode to a frame of silence)
+        long position = mp3Header.getAudioDataStart();
+
+        // jump straight to the closest indexed frame instead of having JLayer skip every frame before it
+        int firstFrame = Math.max(0, frameIndex - PRIMING_FRAMES);
+        streamFrame = 0;
+        if (firstFrame > 0){
+            SeekIndex seekIndex = song.getSeekIndex();
+            if (seekIndex != null){
+                position = seekIndex.getByteOffset(firstFrame);
+                streamFrame = seekIndex.getIndexedFrame(firstFrame);
+            }
+        }
+
+        // read straight from the mapped file, Bitstream does its own small reads so no extra buffer is needed
+        bitstream = new Bitstream(song.getSource().openStream(position));
+        decodedBytes = 0;
+        decodedBytesBeforeLastFrame = -1;
+        decodedFromStart = streamFrame == 0;
+    }
+
+    // the cached block frameIndex is in, pinned and ready to read from, null if it isn't cached
+    private PcmCache.Block lookupBlock(){
+        PcmCache.Block block = pcmCache.lookup(cacheKey, frameIndex / PcmCache.BLOCK_FRAMES);
+        if (block == null) return null;
+
+        cachedBlockFrame = frameIndex % PcmCache.BLOCK_FRAMES;
+        if (cacheBuffer == null) cacheBuffer = new short[MAX_FRAME_SAMPLES];
+        return block;
+    }
+
+    // decodes the next frame, returns how many samples (all channels) are in getBuffer() from getOffset()
+    // (never more than MAX_FRAME_SAMPLES) or -1 once the song is over
+    public int decodeFrame() throws JavaLayerException {
+        if (predecodedOffset < predecodedLength){
+            // hand out the predecoded audio a frame's worth at a time
+            buffer = predecoded;
+            offset = predecodedOffset;
+            int length = Math.min(predecodedLength - predecodedOffset, MAX_FRAME_SAMPLES / channels * channels);
+            predecodedOffset += length;
+            return length;
+        }
+
+        while (true){
+            if (samplesLeft == 0){
+                // whoever reads this far in the cache stops here too
+                publishFillingBlock(true);
+                return -1;
+            }
+
+            int length = readFrame();
+            if (length < 0) return -1;
+            offset = 0;
+
+            // drop the encoder delay at the start and the padding at the end
+            if (samplesToTrim > 0){
+                int trimmed = (int) Math.min(samplesToTrim, length / channels);
+                samplesToTrim -= trimmed;
+                offset = trimmed * channels;
+                length -= offset;
+            }
+            if (samplesLeft > 0){
+                int frames = (int) Math.min(samplesLeft, length / channels);
+                samplesLeft -= frames;
+                length = frames * channels;
+            }
+
+            if (length > 0){
+                if (gain != 1) applyGain(length);
+                return length;
+            }
+        }
+    }
+
+    // the next frame untrimmed, from the cache or the file, into buffer from 0. -1 at the end of the song
+    private int readFrame() throws JavaLayerException {
+        while (true){
+            if (cachedBlock != null){
+                if (cachedBlockFrame < cachedBlock.getFrameCount()){
+                    buffer = cacheBuffer;
+                    sampleRate = cachedBlock.getSampleRate();
+                    channels = cachedBlock.getChannels();
+                    frameIndex++;
+                    return cachedBlock.read(cachedBlockFrame++, cacheBuffer);
+                }
+                boolean endOfSong = cachedBlock.isEndOfSong();
+                pcmCache.release(cachedBlock);
+                cachedBlock = null;
+                if (endOfSong) return -1;
+            }
+
+            // every block start might be cached
+            if (pcmCache != null && (bitstream == null || frameIndex % PcmCache.BLOCK_FRAMES == 0)){
+                cachedBlock = lookupBlock();
+                if (cachedBlock != null){
+                    if (bitstream != null) closeStream();
+                    continue;
+                }
+            }
+
+            if (bitstream == null){
+                try{
+                    openStream();
+                } catch (IOException e){
+                    throw new JavaLayerException("cannot reopen " + song.getFilePath(), e);
+                }
+            }
+            int length = decodeFromStream();
+            if (length < 0){
+                publishFillingBlock(true);
+                return -1;
+            }
+            if (pcmCache != null) cacheFrame(length);
+            frameIndex++;
+            if (fillingBlock != null && frameIndex % PcmCache.BLOCK_FRAMES == 0) publishFillingBlock(false);
+            return length;
+        }
+    }
+
+    // decodes frameIndex from the file into buffer, -1 at the end of the file
+    private int decodeFromStream() throws JavaLayerException {
+        while (true){
+            Header header = bitstream.readFrame();
+            if (header == null) return -1;
+            int frame = streamFrame++;
+
+            // the frames before the priming frames are skipped, those only get decoded to get the decoder ready
+            if (frame < frameIndex - PRIMING_FRAMES){
+                decodedFromStart = false;
+                bitstream.closeFrame();
+                continue;
+            }
+
+            // the frame's main data is all there if the frame before had a full reservoir ahead of it, and then the
+            // overlap the frame before leaves for it is right too
+            boolean exact = decodedFromStart || decodedBytesBeforeLastFrame >= MAX_RESERVOIR_BYTES;
+            decodedBytesBeforeLastFrame = decodedBytes;
+            decodedBytes += mainDataBytes(header);
+
+            SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+            bitstream.closeFrame();
+            if (frame < frameIndex) continue;
+
+            frameExact = exact;
+            sampleRate = output.getSampleFrequency();
+            channels = output.getChannelCount();
+            buffer = output.getBuffer();
+            return output.getBufferLength();
+        }
+    }
+
+    // the bytes of the frame that can end up in the bit reservoir (the frame size without header, crc and side info)
+    private static int mainDataBytes(Header header){
+        if (header.layer() != 3) return header.framesize;
+        boolean mono = header.mode() == Header.SINGLE_CHANNEL;
+        int sideInfo = header.version() == Header.MPEG1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        return Math.max(0, header.framesize - sideInfo - (header.checksums() ? 2 : 0));
+    }
+
+    // adds the decoded frame at frameIndex to the block being filled, blocks only get filled from their first frame
+    // and only with exact frames
+    private void cacheFrame(int length){
+        if (frameIndex % PcmCache.BLOCK_FRAMES == 0 && fillingBlock == null && frameExact){
+            fillingBlock = pcmCache.allocate();
+            fillingBlockIndex = frameIndex / PcmCache.BLOCK_FRAMES;
+        }
+        if (fillingBlock != null && (!frameExact || !fillingBlock.append(buffer, 0, length, sampleRate, channels))){
+            pcmCache.release(fillingBlock);
+            fillingBlock = null;
+        }
+    }
+
+    private void publishFillingBlock(boolean endOfSong){
+        if (fillingBlock == null) return;
+        pcmCache.publish(cacheKey, fillingBlockIndex, fillingBlock, endOfSong);
+        fillingBlock = null;
+    }
+
+    private void applyGain(int length){
+        float gain = this.gain;
+        for (int i = offset; i < offset + length; i++){
+            float value = buffer[i] * gain;
+            buffer[i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE : value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+        }
+    }
+
+    // linear factor for the samples from the next decoded frame on (audio that was predecoded keeps the old gain)
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    // decodes roughly the given amount of audio ahead of time so that the song can start without waiting on the decoder
+    public void predecode(int millis) throws JavaLayerException {
+        short[] decoded = null;
+        int decodedLength = 0;
+        while (true){
+            int length = decodeFrame();
+            if (length < 0) break;
+
+            // the format is only known after the first frame
+            long wanted = (long) sampleRate * channels * millis / 1000;
+            if (decoded == null) decoded = new short[(int) wanted + length];
+            if (decodedLength + length > decoded.length) decoded = Arrays.copyOf(decoded, (decodedLength + length) * 2);
+
+            System.arraycopy(buffer, offset, decoded, decodedLength, length);
+            decodedLength += length;
+            if (decodedLength >= wanted) break;
+        }
+        predecoded = decoded;
+        predecodedOffset = 0;
+        predecodedLength = decodedLength;
+    }
+
+    // sample frames (per channel) that are still to come, estimated from the frame count if the LAME tag doesn't say
+    // how long the song is exactly. only known once a frame has been decoded
+    public long getRemainingSampleFrames(){
+        if (channels == 0) return Long.MAX_VALUE;
+        long remaining = (predecodedLength - predecodedOffset) / channels;
+        if (samplesLeft >= 0) return remaining + samplesLeft;
+        return remaining + Math.max(0, (long) (mp3Header.getFrameCount() - frameIndex) * mp3Header.getSamplesPerFrame());
+    }
+
+    public void close(){
+        if (cachedBlock != null){
+            pcmCache.release(cachedBlock);
+            cachedBlock = null;
+        }
+        // a block that didn't get filled to the end is of no use
+        if (fillingBlock != null){
+            pcmCache.release(fillingBlock);
+            fillingBlock = null;
+        }
+        if (bitstream != null) closeStream();
+    }
+
+    private void closeStream(){
+        try{
+            bitstream.close();
+        } catch (JavaLayerException e){
+            e.printStackTrace();
+        }
+        bitstream = null;
+    }
+
+    // getters
+    public Song getSong() {
+        return song;
+    }
+
+    public int getStartInMilli() {
+        return startInMilli;
+    }
+
+    public short[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // only known once a frame has been decoded
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public Decoder getDecoder() {
+        return decoder;
+    }
+}
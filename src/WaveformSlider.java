@@ -0,0 +1,91 @@
+import javax.swing.*;
+import javax.swing.plaf.SliderUI;
+import javax.swing.plaf.basic.BasicSliderUI;
+import java.awt.*;
+import java.util.Enumeration;
+
+//playback slider that draws the song's waveform (see PeakFile) behind the thumb, the part that has been played is
+//drawn brighter than the rest. without a waveform it's just a normal slider
+public class WaveformSlider extends JSlider {
+
+    private static final Color PLAYED_COLOR = Color.WHITE;
+    private static final Color UNPLAYED_COLOR = Color.DARK_GRAY;
+
+    private PeakFile peakFile;
+
+    //the columns worked out for the current width, only redone when the waveform or the width changes
+    private byte[] mins = new byte[0];
+    private byte[] maxs = new byte[0];
+    private boolean columnsValid;
+
+    public WaveformSlider(int min, int max, int value) {
+        super(JSlider.HORIZONTAL, min, max, value);
+        // the background gets painted here, behind the waveform
+        setOpaque(false);
+    }
+
+    // null clears the waveform
+    public void setPeakFile(PeakFile peakFile){
+        this.peakFile = peakFile;
+        columnsValid = false;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+
+        if (peakFile != null){
+            // line the waveform up with where the thumb goes for the first and last frame
+            int left = 0;
+            int right = getWidth();
+            SliderUI ui = getUI();
+            if (ui instanceof BasicSliderUI && getMaximum() > getMinimum()){
+                // only the x -> value mapping is public, so search for where the track starts and ends
+                left = firstXWithValueAbove((BasicSliderUI) ui, getMinimum());
+                right = firstXWithValueAbove((BasicSliderUI) ui, getMaximum() - 1);
+            }
+            int columns = Math.max(1, right - left);
+            if (!columnsValid || mins.length != columns){
+                mins = new byte[columns];
+                maxs = new byte[columns];
+                peakFile.getColumns(columns, mins, maxs);
+                columnsValid = true;
+            }
+
+            // above the labels
+            int labelHeight = 0;
+            if (getPaintLabels() && getLabelTable() != null){
+                Enumeration<?> labels = getLabelTable().elements();
+                while (labels.hasMoreElements()){
+                    labelHeight = Math.max(labelHeight, ((Component) labels.nextElement()).getPreferredSize().height);
+                }
+            }
+            int bandHeight = Math.max(2, getHeight() - labelHeight - 4);
+            int center = bandHeight / 2;
+
+            int played = getMaximum() > getMinimum()
+                    ? (int) ((long) (getValue() - getMinimum()) * columns / (getMaximum() - getMinimum())) : 0;
+            for (int column = 0; column < columns; column++){
+                g.setColor(column < played ? PLAYED_COLOR : UNPLAYED_COLOR);
+                int top = center - maxs[column] * center / 128;
+                int bottom = center - mins[column] * center / 128;
+                g.drawLine(left + column, top, left + column, Math.max(top, bottom));
+            }
+        }
+
+        super.paintComponent(g);
+    }
+
+    private int firstXWithValueAbove(BasicSliderUI ui, int value){
+        int low = 0;
+        int high = getWidth();
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (ui.valueForXPosition(middle) > value) high = middle;
+            else low = middle + 1;
+        }
+        return low;
+    }
+}